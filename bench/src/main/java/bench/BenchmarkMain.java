@@ -0,0 +1,18 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* Runs JMH with its gc profiler on by default, so allocation per op shows next to the timings */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (!jmhArgs.contains("-prof") && !jmhArgs.contains("-h") && !jmhArgs.contains("-l")) {
+			jmhArgs.add("-prof");
+			jmhArgs.add("gc");
+		}
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,239 @@
+package bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/*
+ * Performance regression gate, run by the perf-gate profile (mvn -f bench/pom.xml -P perf-gate verify).
+ *
+ * Runs a short, fixed set of threshsig and codec benchmarks at 1024 bit keys, in throughput mode and with the
+ * gc profiler, and compares every result with the checked-in baseline: the gate fails when throughput drops or
+ * allocation per op grows past its tolerance. A throughput drop only counts when it also lies outside the 99.9%
+ * error of the run and shows again when the benchmark is run a second time, so that a noisy machine does not
+ * fail builds at random; allocation per op is exact enough to be gated as is. Benchmarks missing from the
+ * baseline are reported, not gated.
+ *
+ * The baseline is only meaningful on the machine it was recorded on. Record it there (and again after an
+ * intended change of cost) with -Dperf.gate.mode=record, and check the file in.
+ *
+ * usage: bench.PerfGate [--baseline perf-baseline.json] [--mode check|record]
+ * 		[--throughput-tolerance 0.30] [--alloc-tolerance 0.10]
+ */
+public class PerfGate {
+
+	private static final String[] INCLUDES = { "threshsig\\.ThreshSigBenchmark\\.",
+			"threshsig\\.VerifyCombinationsBenchmark\\.", "threshsig\\.EncodingBenchmark\\.",
+			"core\\.CodecBenchmark\\." };
+
+	private static final String ALLOC = "gc.alloc.rate.norm";
+	private static final double ALLOC_SLACK_BYTES = 16;	// below this, allocation differences are noise
+
+	public static void main(String[] args) throws Exception {
+		String baseline = "perf-baseline.json";
+		String mode = "check";
+		double throughputTolerance = 0.30;
+		double allocTolerance = 0.10;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "--baseline":
+				baseline = args[i + 1];
+				break;
+			case "--mode":
+				mode = args[i + 1];
+				break;
+			case "--throughput-tolerance":
+				throughputTolerance = Double.parseDouble(args[i + 1]);
+				break;
+			case "--alloc-tolerance":
+				allocTolerance = Double.parseDouble(args[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		Map<String, double[]> measured = measure(INCLUDES);
+		if (mode.equals("record")) {
+			record(measured, baseline);
+			System.out.println("Recorded " + measured.size() + " benchmarks to " + baseline);
+			return;
+		}
+
+		Map<String, double[]> base = read(baseline);
+		List<String> slower = new ArrayList<String>();
+		for (Map.Entry<String, double[]> e : measured.entrySet()) {
+			if (base.containsKey(e.getKey()) && e.getValue()[0] < base.get(e.getKey())[0] * (1 - throughputTolerance))
+				slower.add(Pattern.quote(e.getKey().substring(0, e.getKey().indexOf(' '))) + "$");
+		}
+		if (!slower.isEmpty()) {
+			// a second opinion, keeping the better run of each
+			System.out.println("Running " + slower.size() + " slower benchmarks again to rule out noise");
+			for (Map.Entry<String, double[]> e : measure(slower.toArray(new String[0])).entrySet()) {
+				double[] first = measured.get(e.getKey());
+				if (first == null || e.getValue()[0] > first[0])
+					measured.put(e.getKey(), e.getValue());
+			}
+		}
+
+		if (!check(measured, base, throughputTolerance, allocTolerance))
+			System.exit(1);
+	}
+
+	/* ops/s, its error and bytes allocated per op of every gated benchmark, by benchmark and parameters */
+	private static Map<String, double[]> measure(String[] includes) throws Exception {
+		OptionsBuilder opts = new OptionsBuilder();
+		for (String include : includes) {
+			opts.include(include);
+		}
+		Options options = opts.param("keySize", "1024").param("kl", "3/5").param("bad", "1")
+				.mode(Mode.Throughput).timeUnit(TimeUnit.SECONDS).forks(1).warmupIterations(3)
+				.warmupTime(TimeValue.seconds(1)).measurementIterations(5).measurementTime(TimeValue.seconds(1))
+				.addProfiler("gc").build();
+
+		Collection<RunResult> runs = new Runner(options).run();
+
+		Map<String, double[]> measured = new TreeMap<String, double[]>();
+		for (RunResult run : runs) {
+			double alloc = Double.NaN;
+			for (Map.Entry<String, Result> secondary : run.getSecondaryResults().entrySet()) {
+				if (secondary.getKey().endsWith(ALLOC))
+					alloc = secondary.getValue().getScore();
+			}
+			Result primary = run.getPrimaryResult();
+			double error = Double.isNaN(primary.getScoreError()) ? 0 : primary.getScoreError();
+			measured.put(key(run.getParams()), new double[] { primary.getScore(), alloc, error });
+		}
+		return measured;
+	}
+
+	private static String key(BenchmarkParams params) {
+		StringBuilder key = new StringBuilder(params.getBenchmark());
+		for (String name : params.getParamsKeys()) {
+			key.append(' ').append(name).append('=').append(params.getParam(name));
+		}
+		return key.toString();
+	}
+
+	private static boolean check(Map<String, double[]> measured, Map<String, double[]> baseline,
+			double throughputTolerance, double allocTolerance) {
+
+		System.out.println();
+		System.out.println(String.format("%-80s %12s %12s %8s %10s %10s %8s  %s", "benchmark", "base ops/s",
+				"ops/s", "change", "base B/op", "B/op", "change", "verdict"));
+
+		int regressions = 0;
+		int unknown = 0;
+		for (Map.Entry<String, double[]> e : measured.entrySet()) {
+			double[] now = e.getValue();
+			double[] base = baseline.get(e.getKey());
+			if (base == null) {
+				unknown++;
+				System.out.println(String.format("%-80s %12s %12.1f %8s %10s %10.1f %8s  %s", e.getKey(), "-", now[0],
+						"", "-", now[1], "", "no baseline"));
+				continue;
+			}
+
+			double floor = base[0] * (1 - throughputTolerance);
+			boolean slower = now[0] + now[2] < floor;
+			boolean fatter = now[1] > base[1] * (1 + allocTolerance) + ALLOC_SLACK_BYTES;
+			if (slower || fatter)
+				regressions++;
+
+			String verdict = slower && fatter ? "REGRESSED (throughput, allocation)"
+					: slower ? "REGRESSED (throughput)" : fatter ? "REGRESSED (allocation)"
+							: now[0] < floor ? "ok (slower, within noise)" : "ok";
+			System.out.println(String.format("%-80s %12.1f %12.1f %+7.1f%% %10.1f %10.1f %+7.1f%%  %s", e.getKey(),
+					base[0], now[0], change(base[0], now[0]), base[1], now[1], change(base[1], now[1]), verdict));
+		}
+
+		System.out.println();
+		System.out.println("Tolerances: throughput -" + Math.round(throughputTolerance * 100)
+				+ "% beyond the 99.9% error, allocation +" + Math.round(allocTolerance * 100) + "% (+"
+				+ (int) ALLOC_SLACK_BYTES + " B)");
+		if (unknown > 0)
+			System.out.println(unknown + " benchmarks have no baseline; record one with -Dperf.gate.mode=record");
+		if (regressions > 0) {
+			System.out.println("Performance gate FAILED: " + regressions + " benchmarks regressed");
+			return false;
+		}
+		System.out.println("Performance gate passed");
+		return true;
+	}
+
+	private static double change(double base, double now) {
+		return base == 0 ? 0 : (now - base) * 100 / base;
+	}
+
+	private static Map<String, double[]> read(String file) throws IOException {
+		if (!new File(file).exists())
+			return Collections.emptyMap();
+
+		InputStream is = new FileInputStream(file);
+		JsonReader reader = Json.createReader(is);
+		try {
+			Map<String, double[]> baseline = new TreeMap<String, double[]>();
+			JsonObject benchmarks = reader.readObject().getJsonObject("benchmarks");
+			for (Map.Entry<String, JsonValue> e : benchmarks.entrySet()) {
+				JsonObject b = (JsonObject) e.getValue();
+				baseline.put(e.getKey(), new double[] { ((JsonNumber) b.get("ops-per-s")).doubleValue(),
+						((JsonNumber) b.get("alloc-bytes-per-op")).doubleValue() });
+			}
+			return baseline;
+		} finally {
+			reader.close(); // and the file
+		}
+	}
+
+	private static void record(Map<String, double[]> measured, String file) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		JsonGenerator g = Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true))
+				.createGenerator(os);
+		try {
+			g.writeStartObject();
+			g.write("recorded-on", System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", "
+					+ Runtime.getRuntime().availableProcessors() + " cpus, java " + System.getProperty("java.version"));
+			g.writeStartObject("benchmarks");
+			for (Map.Entry<String, double[]> e : measured.entrySet()) {
+				g.writeStartObject(e.getKey()).write("ops-per-s", round(e.getValue()[0]))
+						.write("alloc-bytes-per-op", round(e.getValue()[1])).writeEnd();
+			}
+			g.writeEnd();
+			g.writeEnd();
+		} finally {
+			g.close(); // and the file
+		}
+	}
+
+	private static double round(double v) {
+		return Double.isNaN(v) ? 0 : Math.round(v * 10) / 10.0;
+	}
+}
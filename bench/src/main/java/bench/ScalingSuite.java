@@ -0,0 +1,199 @@
+package bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs threshsig.ScalingBenchmark over its sweep and reports one row per (key size, k, l, invalid shares):
+ * the number of k-subsets the combination search may have to try, deal time, sign latency and both verify
+ * latencies, each with its 99.9% error. Writes <out>.csv and <out>.json and prints a summary table.
+ *
+ * usage: java -cp bench/target/benchmarks.jar bench.ScalingSuite [--out scaling] [JMH options]
+ * e.g. -p keySize=512,1024 -p kl=3/5,5/10 to narrow the sweep, which takes a while in full.
+ */
+public class ScalingSuite {
+
+	private static final String BENCHMARK = "threshsig.ScalingBenchmark";
+	private static final String[] METRICS = { "deal", "sign", "verifyK", "verifyL" };
+
+	/* one point of the sweep */
+	private static class Point implements Comparable<Point> {
+
+		final int keySize;
+		final int k;
+		final int l;
+		final int invalid;
+		final Result[] results = new Result[METRICS.length];
+
+		Point(int keySize, int k, int l, int invalid) {
+			this.keySize = keySize;
+			this.k = k;
+			this.l = l;
+			this.invalid = invalid;
+		}
+
+		BigInteger subsets() {
+			BigInteger c = BigInteger.ONE;
+			for (int i = 0; i < k; i++) {
+				c = c.multiply(BigInteger.valueOf(l - i)).divide(BigInteger.valueOf(i + 1));
+			}
+			return c;
+		}
+
+		@Override
+		public int compareTo(Point o) {
+			int c = Integer.compare(keySize, o.keySize);
+			if (c == 0)
+				c = Integer.compare(l, o.l);
+			if (c == 0)
+				c = Integer.compare(k, o.k);
+			return c != 0 ? c : Integer.compare(invalid, o.invalid);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String out = "scaling";
+		List<String> jmhArgs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--out") && i + 1 < args.length)
+				out = args[++i];
+			else
+				jmhArgs.add(args[i]);
+		}
+
+		CommandLineOptions cmd = new CommandLineOptions(jmhArgs.toArray(new String[0]));
+		Collection<RunResult> runs = new Runner(new OptionsBuilder().parent(cmd).include(BENCHMARK).build()).run();
+
+		List<Point> points = collect(runs);
+		writeCsv(points, out + ".csv");
+		writeJson(points, out + ".json");
+		printSummary(points);
+		System.out.println();
+		System.out.println("Wrote " + out + ".csv and " + out + ".json");
+	}
+
+	private static List<Point> collect(Collection<RunResult> runs) {
+		Map<String, Point> byKey = new TreeMap<String, Point>();
+		for (RunResult run : runs) {
+			BenchmarkParams params = run.getParams();
+			String method = params.getBenchmark().substring(BENCHMARK.length() + 1);
+			int metric = indexOf(method);
+			if (metric < 0)
+				continue;
+
+			String kl = params.getParam("kl");
+			String key = params.getParam("keySize") + " " + kl + " " + params.getParam("invalid");
+			Point p = byKey.get(key);
+			if (p == null) {
+				String[] parts = kl.split("/");
+				p = new Point(Integer.parseInt(params.getParam("keySize")), Integer.parseInt(parts[0]),
+						Integer.parseInt(parts[1]), Integer.parseInt(params.getParam("invalid")));
+				byKey.put(key, p);
+			}
+			p.results[metric] = run.getPrimaryResult();
+		}
+
+		List<Point> points = new ArrayList<Point>(byKey.values());
+		Collections.sort(points);
+		return points;
+	}
+
+	private static int indexOf(String method) {
+		for (int i = 0; i < METRICS.length; i++) {
+			if (METRICS[i].equals(method))
+				return i;
+		}
+		return -1;
+	}
+
+	private static void writeCsv(List<Point> points, String file) throws IOException {
+		PrintWriter w = new PrintWriter(file, "UTF-8");
+		try {
+			StringBuilder header = new StringBuilder("key_size,k,l,invalid,subsets");
+			for (String m : METRICS) {
+				header.append(',').append(m).append(",").append(m).append("_error,").append(m).append("_unit");
+			}
+			w.println(header);
+
+			for (Point p : points) {
+				StringBuilder row = new StringBuilder();
+				row.append(p.keySize).append(',').append(p.k).append(',').append(p.l).append(',').append(p.invalid)
+						.append(',').append(p.subsets());
+				for (Result r : p.results) {
+					if (r == null)
+						row.append(",,,");
+					else
+						row.append(',').append(r.getScore()).append(',').append(error(r)).append(',')
+								.append(r.getScoreUnit());
+				}
+				w.println(row);
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void writeJson(List<Point> points, String file) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		JsonGenerator g = Json.createGenerator(os);
+		try {
+			g.writeStartArray();
+			for (Point p : points) {
+				g.writeStartObject().write("key-size", p.keySize).write("k", p.k).write("l", p.l)
+						.write("invalid", p.invalid).write("subsets", p.subsets());
+				for (int i = 0; i < METRICS.length; i++) {
+					Result r = p.results[i];
+					if (r == null)
+						continue;
+					g.writeStartObject(METRICS[i]).write("score", r.getScore());
+					if (!Double.isNaN(r.getScoreError()))
+						g.write("error", r.getScoreError());
+					g.write("unit", r.getScoreUnit()).writeEnd();
+				}
+				g.writeEnd();
+			}
+			g.writeEnd();
+		} finally {
+			g.close(); // and the file
+		}
+	}
+
+	private static void printSummary(List<Point> points) {
+		System.out.println();
+		System.out.println(String.format("%8s %5s %8s %8s %12s %12s %14s %14s", "key bits", "k/l", "invalid",
+				"subsets", "deal ms", "sign us", "verify k us", "verify l us"));
+		for (Point p : points) {
+			System.out.println(String.format("%8d %5s %8d %8s %12s %12s %14s %14s", p.keySize, p.k + "/" + p.l,
+					p.invalid, p.subsets(), score(p.results[0]), score(p.results[1]), score(p.results[2]),
+					score(p.results[3])));
+		}
+	}
+
+	/* empty when there were too few iterations to tell */
+	private static String error(Result r) {
+		return Double.isNaN(r.getScoreError()) ? "" : String.valueOf(r.getScoreError());
+	}
+
+	private static String score(Result r) {
+		return r == null ? "-" : String.format("%.1f", r.getScore());
+	}
+}
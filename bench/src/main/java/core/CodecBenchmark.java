@@ -0,0 +1,107 @@
+package core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import threshsig.Dealer;
+import threshsig.GroupKey;
+import threshsig.KeyShare;
+import threshsig.SigShare;
+
+/* Payload decoding and encoding of sign, verify and deal calls, JSON against binary, in the default wire format
+ * (no share verifiers or proofs, see XSPServer.SHARE_PROOFS) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "json", "binary" })
+	String codec;
+
+	@Param({ "512", "1024", "2048" })
+	int keySize;
+
+	XSPCodec xspCodec;
+	GroupKey gk;
+	KeyShare[] shares;
+	SigShare sig;
+	byte[] signCall;
+	byte[] verifyCall;
+
+	@Setup
+	public void setup() throws IOException {
+		Dealer d = new Dealer(keySize);
+		d.generateKeys(3, 5);
+		gk = d.getGroupKey().withoutVerifiers();
+		shares = d.getShares();
+
+		byte[] msg = "lorem ipsum dolor sit amet".getBytes(StandardCharsets.UTF_8);
+		SigShare[] sigs = new SigShare[shares.length];
+		for (int i = 0; i < sigs.length; i++) {
+			sigs[i] = shares[i].sign(msg).withoutProof();
+		}
+		sig = sigs[0];
+
+		if (codec.equals("binary")) {
+			xspCodec = XSPBinaryCodec.INSTANCE;
+
+			byte[][] sigBytes = new byte[sigs.length][];
+			for (int i = 0; i < sigs.length; i++) {
+				sigBytes[i] = sigs[i].getEncoded();
+			}
+			signCall = XSPBinaryCodec.encodeSignRequest(shares[0].getEncoded(), msg);
+			verifyCall = XSPBinaryCodec.encodeVerifyRequest(gk.getEncoded(), sigBytes, msg);
+		} else {
+			xspCodec = XSPJsonCodec.INSTANCE;
+
+			String text = new String(msg, StandardCharsets.UTF_8);
+			JsonArrayBuilder sigStrings = Json.createArrayBuilder();
+			for (SigShare s : sigs) {
+				sigStrings.add(s.toString());
+			}
+			signCall = Json.createObjectBuilder().add("share", shares[0].toString()).add("msg", text).build()
+					.toString().getBytes(StandardCharsets.UTF_8);
+			verifyCall = Json.createObjectBuilder().add("group-key", gk.toString()).add("signatures", sigStrings)
+					.add("msg", text).build().toString().getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	@Benchmark
+	public XSPCodec.SignRequest decodeSignRequest() throws IOException {
+		return xspCodec.decodeSignRequest(signCall);
+	}
+
+	@Benchmark
+	public byte[] encodeSignResponse() throws IOException {
+		return xspCodec.encodeSignResponse(sig);
+	}
+
+	@Benchmark
+	public XSPCodec.VerifyRequest decodeVerifyRequest() throws IOException {
+		return xspCodec.decodeVerifyRequest(verifyCall);
+	}
+
+	@Benchmark
+	public byte[] encodeDealResponse() throws IOException {
+		return xspCodec.encodeDealResponse(gk, shares);
+	}
+}
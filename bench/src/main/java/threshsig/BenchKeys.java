@@ -0,0 +1,40 @@
+package threshsig;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/* Key material shared by the threshsig benchmarks */
+class BenchKeys {
+
+	static final byte[] MESSAGE = ("lorem ipsum dolor sit amet, consectetur adipiscing elit, "
+			+ "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.").getBytes(StandardCharsets.UTF_8);
+
+	final int k;
+	final int l;
+	final GroupKey gk;
+	final KeyShare[] shares;
+	final SigShare[] sigs;		// a valid signature share of MESSAGE from every key share
+
+	/* 'kl' is "k/l", as the benchmarks take it as a parameter */
+	BenchKeys(int keySize, String kl) {
+		String[] parts = kl.split("/");
+		k = Integer.parseInt(parts[0]);
+		l = Integer.parseInt(parts[1]);
+
+		Dealer d = new Dealer(keySize);
+		d.generateKeys(k, l);
+		gk = d.getGroupKey();
+		shares = d.getShares();
+
+		sigs = new SigShare[l];
+		for (int i = 0; i < l; i++) {
+			sigs[i] = shares[i].sign(MESSAGE);
+		}
+	}
+
+	/* a share with the id of 'sig' whose value is not a signature of anything */
+	SigShare forge(SigShare sig) {
+		BigInteger bogus = new BigInteger(gk.getModulus().bitLength() - 1, ThreshUtil.getRandom());
+		return new SigShare(sig.getId(), bogus, sig.getSigVerifier());
+	}
+}
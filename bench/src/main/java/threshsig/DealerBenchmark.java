@@ -0,0 +1,44 @@
+package threshsig;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Dealer.generateKeys and the strong prime search it runs twice; both are slow and random, hence single shots */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DealerBenchmark {
+
+	@Param({ "512", "1024", "2048" })
+	int keySize;
+
+	@Param({ "3/5", "5/9" })
+	String kl;
+
+	@Benchmark
+	public Dealer generateKeys() {
+		String[] parts = kl.split("/");
+		Dealer d = new Dealer(keySize);
+		d.generateKeys(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		return d;
+	}
+
+	@Benchmark
+	public BigInteger generateStrongPrime() {
+		return SafePrimeGen.generateStrongPrime(keySize, ThreshUtil.getRandom());
+	}
+}
@@ -0,0 +1,136 @@
+package threshsig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* The Base64 (toString / fromString / fromBytes) and raw (getEncoded / fromEncoded) encodings of keys and shares,
+ * without the verifiers and proofs that only go on the wire with XSP_SHARE_PROOFS */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+	@Param({ "512", "1024", "2048" })
+	int keySize;
+
+	@Param({ "3/5" })
+	String kl;
+
+	GroupKey gk;
+	KeyShare share;
+	SigShare sig;
+
+	String gkString, shareString, sigString;
+	byte[] gkBase64, shareBase64, sigBase64;
+	byte[] gkEncoded, shareEncoded, sigEncoded;
+
+	@Setup
+	public void setup() {
+		BenchKeys keys = new BenchKeys(keySize, kl);
+		gk = keys.gk.withoutVerifiers();
+		share = keys.shares[0];
+		sig = keys.sigs[0].withoutProof();
+
+		gkString = gk.toString();
+		shareString = share.toString();
+		sigString = sig.toString();
+
+		gkBase64 = gkString.getBytes(StandardCharsets.US_ASCII);
+		shareBase64 = shareString.getBytes(StandardCharsets.US_ASCII);
+		sigBase64 = sigString.getBytes(StandardCharsets.US_ASCII);
+
+		gkEncoded = gk.getEncoded();
+		shareEncoded = share.getEncoded();
+		sigEncoded = sig.getEncoded();
+	}
+
+	@Benchmark
+	public String groupKeyToString() {
+		return gk.toString();
+	}
+
+	@Benchmark
+	public GroupKey groupKeyFromString() {
+		return GroupKey.fromString(gkString);
+	}
+
+	@Benchmark
+	public GroupKey groupKeyFromBytes() {
+		return GroupKey.fromBytes(gkBase64);
+	}
+
+	@Benchmark
+	public byte[] groupKeyGetEncoded() {
+		return gk.getEncoded();
+	}
+
+	@Benchmark
+	public GroupKey groupKeyFromEncoded() {
+		return GroupKey.fromEncoded(gkEncoded);
+	}
+
+	@Benchmark
+	public String keyShareToString() {
+		return share.toString();
+	}
+
+	@Benchmark
+	public KeyShare keyShareFromString() {
+		return KeyShare.fromString(shareString);
+	}
+
+	@Benchmark
+	public KeyShare keyShareFromBytes() {
+		return KeyShare.fromBytes(shareBase64);
+	}
+
+	@Benchmark
+	public byte[] keyShareGetEncoded() {
+		return share.getEncoded();
+	}
+
+	@Benchmark
+	public KeyShare keyShareFromEncoded() {
+		return KeyShare.fromEncoded(shareEncoded);
+	}
+
+	@Benchmark
+	public String sigShareToString() {
+		return sig.toString();
+	}
+
+	@Benchmark
+	public SigShare sigShareFromString() {
+		return SigShare.fromString(sigString);
+	}
+
+	@Benchmark
+	public SigShare sigShareFromBytes() {
+		return SigShare.fromBytes(sigBase64);
+	}
+
+	@Benchmark
+	public byte[] sigShareGetEncoded() {
+		return sig.getEncoded();
+	}
+
+	@Benchmark
+	public SigShare sigShareFromEncoded() {
+		return SigShare.fromEncoded(sigEncoded);
+	}
+}
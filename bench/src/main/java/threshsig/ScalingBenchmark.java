@@ -0,0 +1,99 @@
+package threshsig;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost curves over key size and committee size (k of l): deal time, sign latency, verify latency with exactly
+ * k valid shares, and verify latency over all l shares of which 'invalid' are forged and placed first, so that
+ * SigShare.verifyCombinations has to search. Run through bench.ScalingSuite for the CSV/JSON report.
+ *
+ * Short iterations, as the sweep has many points; the deal is a handful of single shots since it is slow and
+ * random. Keys are only dealt for the sign and verify benchmarks (see Keys).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ScalingBenchmark {
+
+	@Param({ "512", "1024", "2048", "3072", "4096" })
+	int keySize;
+
+	@Param({ "2/3", "3/5", "5/9", "5/10", "7/13" })
+	String kl;
+
+	@Param({ "1" })
+	int invalid;
+
+	int k;
+	int l;
+
+	@Setup
+	public void setup() {
+		String[] parts = kl.split("/");
+		k = Integer.parseInt(parts[0]);
+		l = Integer.parseInt(parts[1]);
+		if (invalid > l - k)
+			throw new IllegalArgumentException("At most l - k = " + (l - k) + " invalid shares leave k valid ones");
+	}
+
+	@State(Scope.Benchmark)
+	public static class Keys {
+
+		BenchKeys keys;
+		SigShare[] kSigs;
+		SigShare[] lSigs;
+
+		@Setup
+		public void setup(ScalingBenchmark point) {
+			keys = new BenchKeys(point.keySize, point.kl);
+			kSigs = Arrays.copyOf(keys.sigs, keys.k);
+
+			lSigs = keys.sigs.clone();
+			for (int i = 0; i < point.invalid; i++) {
+				lSigs[i] = keys.forge(lSigs[i]);
+			}
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public Dealer deal() {
+		Dealer d = new Dealer(keySize);
+		d.generateKeys(k, l);
+		return d;
+	}
+
+	@Benchmark
+	public SigShare sign(Keys s) {
+		return s.keys.shares[0].sign(BenchKeys.MESSAGE);
+	}
+
+	@Benchmark
+	public boolean verifyK(Keys s) {
+		return SigShare.verify(BenchKeys.MESSAGE, s.kSigs, k, l, s.keys.gk.getModulus(), s.keys.gk.getExponent());
+	}
+
+	@Benchmark
+	public boolean verifyL(Keys s) {
+		return SigShare.verifyCombinations(BenchKeys.MESSAGE, s.lSigs, s.keys.gk);
+	}
+}
@@ -0,0 +1,51 @@
+package threshsig;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* KeyShare.sign and SigShare.verify with exactly k valid shares */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreshSigBenchmark {
+
+	@Param({ "512", "1024", "2048" })
+	int keySize;
+
+	@Param({ "3/5", "5/9" })
+	String kl;
+
+	BenchKeys keys;
+	SigShare[] kSigs;
+
+	@Setup
+	public void setup() {
+		keys = new BenchKeys(keySize, kl);
+		kSigs = Arrays.copyOf(keys.sigs, keys.k);
+	}
+
+	@Benchmark
+	public SigShare sign() {
+		return keys.shares[0].sign(BenchKeys.MESSAGE);
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return SigShare.verify(BenchKeys.MESSAGE, kSigs, keys.k, keys.l, keys.gk.getModulus(), keys.gk.getExponent());
+	}
+}
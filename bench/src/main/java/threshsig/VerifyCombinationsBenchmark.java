@@ -0,0 +1,70 @@
+package threshsig;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * SigShare.verifyCombinations over all l shares, of which 'bad' are forged: none, one, or as many as still
+ * leave k valid ones (l - k). Forged shares come first, the worst case for the combination search.
+ * The same search split across the cores on the common fork-join pool, and SigShare.verifyProofs over the same
+ * shares, which checks each one and combines a single k-subset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerifyCombinationsBenchmark {
+
+	@Param({ "512", "1024", "2048" })
+	int keySize;
+
+	@Param({ "3/5", "5/9" })
+	String kl;
+
+	@Param({ "0", "1", "several" })
+	String bad;
+
+	BenchKeys keys;
+	SigShare[] sigs;
+
+	@Setup
+	public void setup() {
+		keys = new BenchKeys(keySize, kl);
+
+		int forged = bad.equals("several") ? keys.l - keys.k : Integer.parseInt(bad);
+		sigs = keys.sigs.clone();
+		for (int i = 0; i < forged; i++) {
+			sigs[i] = keys.forge(sigs[i]);
+		}
+	}
+
+	@Benchmark
+	public boolean verifyCombinations() {
+		return SigShare.verifyCombinations(BenchKeys.MESSAGE, sigs, keys.gk);
+	}
+
+	@Benchmark
+	public boolean verifyCombinationsParallel() {
+		return SigShare.verifyCombinations(BenchKeys.MESSAGE, sigs, keys.gk, ForkJoinPool.commonPool(),
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	@Benchmark
+	public boolean verifyProofs() {
+		return SigShare.verifyProofs(BenchKeys.MESSAGE, sigs, keys.gk, null);
+	}
+}
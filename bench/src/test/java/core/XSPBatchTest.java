@@ -0,0 +1,125 @@
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+
+import threshsig.Dealer;
+import threshsig.GroupKey;
+import threshsig.KeyShare;
+import threshsig.SigShare;
+
+/* Batch items that decode but cannot be signed or verified with (a zero modulus) fail on their own */
+public class XSPBatchTest {
+
+	private static final String MSG = "batch item";
+
+	private static String socketFile;
+	private static Dealer dealer;
+
+	@BeforeAll
+	static void startServer() throws Exception {
+		socketFile = new File(System.getProperty("java.io.tmpdir"), "xsp-batch-test-" + ProcessHandle.current().pid()
+				+ ".sock").getPath();
+
+		XSPServer server = new XSPServer(socketFile, JUDS.SOCK_STREAM);
+		XSPServer.SERVER_MODE = XSPServer.ServerMode.POOL;
+		XSPServer.THREAD_POOL_SIZE = 1;
+		server.start();
+
+		dealer = new Dealer(512);
+		dealer.generateKeys(2, 3);
+	}
+
+	@AfterAll
+	static void removeSocket() {
+		new File(socketFile).delete();
+	}
+
+	@Test
+	void badSignItemLeavesTheOthersSigned() throws Exception {
+		KeyShare good = dealer.getShares()[0];
+		KeyShare bad = new KeyShare(2, BigInteger.TEN, BigInteger.ZERO, good.getDelta(), good.getVerifier(),
+				good.getGroupVerifier());
+
+		JsonObject call = Json.createObjectBuilder().add("items", Json.createArrayBuilder()
+				.add(signItem(good)).add(signItem(bad)).add(signItem(dealer.getShares()[2]))).build();
+
+		JsonArray sigs = call(CallType.ThreshSigBatchSignCall, call).getJsonArray("signatures");
+		assertEquals(3, sigs.size());
+		assertFalse(sigs.isNull(0));
+		assertTrue(sigs.isNull(1));
+		assertFalse(sigs.isNull(2));
+	}
+
+	@Test
+	void badVerifyItemLeavesTheOthersVerified() throws Exception {
+		GroupKey gk = dealer.getGroupKey().withoutVerifiers();
+		GroupKey bad = new GroupKey(gk.getK(), gk.getL(), gk.getExponent(), BigInteger.ZERO);
+
+		JsonObject call = Json.createObjectBuilder().add("items", Json.createArrayBuilder()
+				.add(verifyItem(gk)).add(verifyItem(bad)).add(verifyItem(gk))).build();
+
+		JsonArray valid = call(CallType.ThreshSigBatchVerifyCall, call).getJsonArray("valid");
+		assertEquals(3, valid.size());
+		assertTrue(valid.getBoolean(0));
+		assertFalse(valid.getBoolean(1));
+		assertTrue(valid.getBoolean(2));
+	}
+
+	private static JsonObject signItem(KeyShare share) {
+		return Json.createObjectBuilder().add("share", share.toString()).add("msg", MSG).build();
+	}
+
+	private static JsonObject verifyItem(GroupKey gk) {
+		KeyShare[] shares = dealer.getShares();
+		byte[] msg = MSG.getBytes();
+		return Json.createObjectBuilder().add("group-key", gk.toString())
+				.add("signatures", Json.createArrayBuilder().add(sign(shares[0], msg)).add(sign(shares[1], msg)))
+				.add("msg", MSG).build();
+	}
+
+	private static String sign(KeyShare share, byte[] msg) {
+		return share.sign(msg).withoutProof().toString();
+	}
+
+	private static JsonObject call(CallType t, JsonObject request) throws IOException {
+		UnixDomainSocketClient client = new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM);
+		client.setSoTimeout(30000);
+		try {
+			XSPSocketConnection conn = new XSPSocketConnection("test", client, XSPSocketConnection.WireMode.FRAMED);
+			conn.send(t, request.toString().getBytes("UTF-8"));
+
+			XSPFrame resp = conn.receiveFrame();
+			assertNotNull(resp, "connection closed without a reply");
+			JsonReader reader = Json.createReader(
+					new InputStreamReader(new ByteArrayInputStream(resp.getPayload()), "UTF-8"));
+			try {
+				return reader.readObject();
+			} finally {
+				reader.close();
+			}
+		} finally {
+			client.close();
+		}
+	}
+}
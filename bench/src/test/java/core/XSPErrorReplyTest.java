@@ -0,0 +1,60 @@
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+
+/* A framed call the server cannot decode is answered with an error reply before the connection is closed, so a
+ * client with another call pipelined behind it is not left waiting for its timeout */
+public class XSPErrorReplyTest {
+
+	private static String socketFile;
+
+	@BeforeAll
+	static void startServer() throws Exception {
+		socketFile = new File(System.getProperty("java.io.tmpdir"), "xsp-error-test-" + ProcessHandle.current().pid()
+				+ ".sock").getPath();
+
+		XSPServer server = new XSPServer(socketFile, JUDS.SOCK_STREAM);
+		XSPServer.SERVER_MODE = XSPServer.ServerMode.POOL;
+		XSPServer.THREAD_POOL_SIZE = 1;
+		server.start();
+	}
+
+	@AfterAll
+	static void removeSocket() {
+		new File(socketFile).delete();
+	}
+
+	@Test
+	void malformedCallGetsAnErrorReply() throws Exception {
+		UnixDomainSocketClient client = new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM);
+		client.setSoTimeout(30000);
+		try {
+			XSPSocketConnection conn = new XSPSocketConnection("test", client, XSPSocketConnection.WireMode.FRAMED);
+			conn.send(CallType.ThreshSigSignCall, "{\"share\":\"not a share\",\"msg\":\"m\"}".getBytes("UTF-8"));
+			conn.send(CallType.XSPStatsCall, new byte[0]);
+
+			XSPFrame resp = conn.receiveFrame();
+			assertNotNull(resp, "connection closed without a reply");
+			assertEquals(CallType.XSPErrorRet, resp.getCallType());
+			try {
+				assertNull(conn.receiveFrame(), "connection left open after a failed call");
+			} catch (IOException e) {
+				// reset, as the pipelined call was never read
+			}
+		} finally {
+			client.close();
+		}
+	}
+}
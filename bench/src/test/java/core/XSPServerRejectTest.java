@@ -0,0 +1,104 @@
+package core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+
+/* Pool mode without attend threads and with a queue of one, so that the second client on is rejected. Rejected
+ * clients get a second to send their call, long enough that an acceptor waiting for them would show. The
+ * busy reply is checked first, while the reject executor is still free. */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class XSPServerRejectTest {
+
+	private static final int READ_TIMEOUT_MS = 1000;
+
+	private static String socketFile;
+	private static List<UnixDomainSocketClient> silent = new ArrayList<UnixDomainSocketClient>();
+
+	@BeforeAll
+	static void startServer() throws Exception {
+		socketFile = new File(System.getProperty("java.io.tmpdir"), "xsp-reject-test-" + ProcessHandle.current().pid()
+				+ ".sock").getPath();
+
+		XSPServer server = new XSPServer(socketFile, JUDS.SOCK_STREAM);
+		XSPServer.SERVER_MODE = XSPServer.ServerMode.POOL;
+		XSPServer.THREAD_POOL_SIZE = 0;
+		XSPServer.QUEUE_DEPTH = 1;
+		XSPServer.REJECT_THREADS = 1;
+		XSPServer.REJECT_QUEUE_DEPTH = 2;
+		XSPServer.REJECT_READ_TIMEOUT_MS = READ_TIMEOUT_MS;
+		server.start();
+
+		// stays in the queue for good
+		silent.add(connect());
+	}
+
+	@AfterAll
+	static void closeClients() {
+		for (UnixDomainSocketClient client : silent)
+			client.close();
+		new File(socketFile).delete();
+	}
+
+	@Test
+	@Order(1)
+	void rejectedClientIsToldBusy() throws Exception {
+		UnixDomainSocketClient client = connect();
+		try {
+			XSPSocketConnection conn = new XSPSocketConnection("test", client, XSPSocketConnection.WireMode.FRAMED);
+			conn.send(CallType.ThreshSigVerifyCall, "{}".getBytes("UTF-8"));
+
+			XSPFrame resp = conn.receiveFrame();
+			assertNotNull(resp);
+			assertEquals(CallType.XSPBusyRet, resp.getCallType());
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	@Order(2)
+	void silentRejectedClientsDoNotHoldUpAccept() throws Exception {
+		// more than the reject executor takes, each of which would hold a waiting acceptor for a second
+		for (int i = 0; i < 8; i++)
+			silent.add(connect());
+
+		UnixDomainSocketClient client = connect();
+		try {
+			XSPSocketConnection conn = new XSPSocketConnection("test", client, XSPSocketConnection.WireMode.FRAMED);
+			long started = System.nanoTime();
+			try {
+				conn.send(CallType.ThreshSigVerifyCall, "{}".getBytes("UTF-8"));
+				conn.receiveFrame(); // a busy reply, or the end of the stream once the executor is full
+			} catch (IOException e) {
+				// closed before the call was written
+			}
+			long elapsedMs = (System.nanoTime() - started) / 1000000;
+
+			assertTrue(elapsedMs < READ_TIMEOUT_MS, "rejected client waited " + elapsedMs + " ms for an answer");
+		} finally {
+			client.close();
+		}
+	}
+
+	private static UnixDomainSocketClient connect() throws IOException {
+		UnixDomainSocketClient client = new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM);
+		client.setSoTimeout(20 * READ_TIMEOUT_MS);
+		return client;
+	}
+}
@@ -0,0 +1,76 @@
+package threshsig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/* A parallel combination search has to end as the sequential one does, at the lowest ranked subset that either
+ * verifies or has a null or duplicate share. With k = 3 of 7 shares the subsets starting with share 0 take ranks
+ * 0 to 14, ending with 056, then come 123, 124, 125, 126 (rank 18), ...; a parallelism of 2 splits ranks 1 to 34
+ * into [1, 18) and [18, 35). */
+public class CombinationSearchTest {
+
+	private static final int PARALLELISM = 2;
+
+	private static BenchKeys keys;
+	private static ForkJoinPool pool;
+
+	@BeforeAll
+	static void setUp() {
+		keys = new BenchKeys(512, "3/7");
+		pool = new ForkJoinPool(PARALLELISM);
+	}
+
+	@AfterAll
+	static void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	void duplicateBeforeValidSubsetFailsAtAnyParallelism() {
+		// share 0 is forged, so the first range verifies nothing and fails at 056 (rank 14), which repeats id 7;
+		// the second range starts with 126 (rank 18), which verifies
+		SigShare[] sigs = { keys.forge(keys.sigs[0]), keys.sigs[1], keys.sigs[2], keys.sigs[3], keys.sigs[4],
+				keys.sigs[6], keys.sigs[6] };
+
+		for (int parallelism : new int[] { 1, PARALLELISM }) {
+			ThresholdSigException e = assertThrows(ThresholdSigException.class,
+					() -> SigShare.verifyCombinations(BenchKeys.MESSAGE, sigs, keys.gk, pool, parallelism),
+					"parallelism " + parallelism);
+			assertTrue(e.getMessage().contains("Duplicate signature: 7"), e.getMessage());
+		}
+	}
+
+	@Test
+	void subsetsTooManyToRankAreSearchedInOrder() {
+		// C(68, 34) does not fit in a long, so the search cannot be split by rank; with share 33 forged the first
+		// subset fails and the second, 0 to 32 and 34, verifies
+		BenchKeys wide = new BenchKeys(512, "34/68");
+		SigShare[] sigs = wide.sigs.clone();
+		sigs[33] = wide.forge(sigs[33]);
+		assertEquals(Long.MAX_VALUE, Combination.count(sigs.length, wide.k));
+
+		for (int parallelism : new int[] { 1, PARALLELISM }) {
+			assertTrue(SigShare.verifyCombinations(BenchKeys.MESSAGE, sigs, wide.gk, pool, parallelism),
+					"parallelism " + parallelism);
+		}
+	}
+
+	@Test
+	void validSubsetBeforeDuplicateVerifiesAtAnyParallelism() {
+		// 013 verifies (rank 1), 056 repeats id 7 (rank 14)
+		SigShare[] sigs = { keys.sigs[0], keys.sigs[1], keys.forge(keys.sigs[2]), keys.sigs[3], keys.sigs[4],
+				keys.sigs[6], keys.sigs[6] };
+
+		for (int parallelism : new int[] { 1, PARALLELISM }) {
+			assertTrue(SigShare.verifyCombinations(BenchKeys.MESSAGE, sigs, keys.gk, pool, parallelism),
+					"parallelism " + parallelism);
+		}
+	}
+}
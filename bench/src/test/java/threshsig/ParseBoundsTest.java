@@ -0,0 +1,93 @@
+package threshsig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/* Group keys and signature shares come from clients, so their lengths and counts must not be trusted */
+public class ParseBoundsTest {
+
+	private static BenchKeys keys;
+
+	@BeforeAll
+	static void deal() {
+		keys = new BenchKeys(512, "3/5");
+	}
+
+	@Test
+	void groupKeyRoundTrips() {
+		byte[] encoded = keys.gk.getEncoded();
+		GroupKey gk = GroupKey.fromEncoded(encoded);
+		assertNotNull(gk);
+		assertArrayEquals(encoded, gk.getEncoded());
+	}
+
+	@Test
+	void groupKeyWithBadVerifierCountIsRejected() {
+		int at = verifierCountOffset(keys.gk);
+		for (int count : new int[] { -1, Integer.MAX_VALUE, keys.l - 1, keys.l + 1 }) {
+			byte[] encoded = keys.gk.getEncoded();
+			ByteBuffer.wrap(encoded).putInt(at, count);
+			assertNull(GroupKey.fromEncoded(encoded), "verifier count " + count);
+		}
+	}
+
+	@Test
+	void groupKeyWithBadLengthIsRejected() {
+		for (int len : new int[] { -1, 0, Integer.MAX_VALUE }) {
+			byte[] encoded = keys.gk.getEncoded();
+			ByteBuffer.wrap(encoded).putInt(8, len); // exponent length
+			assertNull(GroupKey.fromEncoded(encoded), "exponent length " + len);
+		}
+		byte[] truncated = keys.gk.getEncoded();
+		assertNull(GroupKey.fromEncoded(Arrays.copyOf(truncated, truncated.length - 1)));
+	}
+
+	@Test
+	void sigShareWithBadLengthIsRejected() {
+		SigShare sig = keys.sigs[0];
+		int zAt = 4 + 4 + sig.getSig().toByteArray().length;
+		for (int at : new int[] { 4, zAt }) {
+			for (int len : new int[] { -1, Integer.MAX_VALUE }) {
+				byte[] encoded = sig.getEncoded();
+				ByteBuffer.wrap(encoded).putInt(at, len);
+				assertNull(SigShare.fromEncoded(encoded), "length " + len + " at " + at);
+			}
+		}
+	}
+
+	@Test
+	void keyShareRoundTrips() {
+		byte[] encoded = keys.shares[0].getEncoded();
+		KeyShare share = KeyShare.fromEncoded(encoded);
+		assertNotNull(share);
+		assertArrayEquals(encoded, share.getEncoded());
+	}
+
+	@Test
+	void keyShareWithBadLengthIsRejected() {
+		// secret, n, delta, verifier and group verifier, each after the length of the one before
+		byte[] original = keys.shares[0].getEncoded();
+		ByteBuffer bb = ByteBuffer.wrap(original);
+		for (int at = 4; at < original.length; at += 4 + bb.getInt(at)) {
+			for (int len : new int[] { -1, Integer.MAX_VALUE }) {
+				byte[] encoded = original.clone();
+				ByteBuffer.wrap(encoded).putInt(at, len);
+				assertNull(KeyShare.fromEncoded(encoded), "length " + len + " at " + at);
+			}
+		}
+		assertNull(KeyShare.fromEncoded(Arrays.copyOf(original, original.length - 1)));
+	}
+
+	/* k, l, exponent and modulus, then the group verifier, then the count */
+	private static int verifierCountOffset(GroupKey gk) {
+		return 4 + 4 + 4 + gk.getExponent().toByteArray().length + 4 + gk.getModulus().toByteArray().length + 4
+				+ gk.getGroupVerifier().toByteArray().length;
+	}
+}
@@ -1,28 +1,50 @@
 package core;
 
+import java.nio.charset.StandardCharsets;
+
 public enum CallType {
-	
-	ThreshSigDealCall("__CALL_THRESHSIG_DEAL"),		// call to gen l shares and group pubkey
-	ThreshSigDealRet("__RETU_THRESHSIG_DEAL"),
-	ThreshSigSignCall("__CALL_THRESHSIG_SIGN"),		// call to sign using input share
-	ThreshSigSignRet("__RETU_THRESHSIG_SIGN"),
-	ThreshSigVerifyCall("__CALL_THRESHSIG_VERI"),		// call to sign using input share
-	ThreshSigVerifyRet("__RETU_THRESHSIG_VERI"),
-	NoOp("__NO_CALL");
-	
-	
+
+	ThreshSigDealCall("__CALL_THRESHSIG_DEAL", 0x0101),		// call to gen l shares and group pubkey
+	ThreshSigDealRet("__RETU_THRESHSIG_DEAL", 0x0102),
+	ThreshSigSignCall("__CALL_THRESHSIG_SIGN", 0x0201),		// call to sign using input share
+	ThreshSigSignRet("__RETU_THRESHSIG_SIGN", 0x0202),
+	ThreshSigVerifyCall("__CALL_THRESHSIG_VERI", 0x0301),		// call to sign using input share
+	ThreshSigVerifyRet("__RETU_THRESHSIG_VERI", 0x0302),
+	ThreshSigBatchSignCall("__CALL_THRESHSIG_BSIG", 0x0401),	// call to sign many (share, msg) items at once
+	ThreshSigBatchSignRet("__RETU_THRESHSIG_BSIG", 0x0402),
+	ThreshSigBatchVerifyCall("__CALL_THRESHSIG_BVER", 0x0501),	// call to verify many messages at once, e.g. a block
+	ThreshSigBatchVerifyRet("__RETU_THRESHSIG_BVER", 0x0502),
+	XSPBusyRet("__RETU_XSP_BUSY", 0x0F02),				// sent instead of any return when the work queue is full
+	XSPStatsCall("__CALL_XSP_STATS", 0x0F11),			// call for a JSON snapshot of XSPStats
+	XSPStatsRet("__RETU_XSP_STATS", 0x0F12),
+	XSPErrorRet("__RETU_XSP_ERROR", 0x0F22),			// sent instead of any return when a framed call fails
+	NoOp("__NO_CALL", 0x0000);
+
+
 	private String callName;
-	
-	CallType(String callName) {
+	private byte[] callNameBytes;		// legacy mode prefix, encoded once
+	private int code;			// fixed-width call id used in framed mode headers
+
+	CallType(String callName, int code) {
 		this.callName = callName;
+		this.callNameBytes = callName.getBytes(StandardCharsets.UTF_8);
+		this.code = code;
 	}
-	
+
 	String getCallName() {
 		return callName;
 	}
-	
+
+	byte[] getCallNameBytes() {
+		return callNameBytes;
+	}
+
+	int getCode() {
+		return code;
+	}
+
 	static CallType parseCall(String callName) {
-		
+
 		switch (callName) {
 			case "__CALL_THRESHSIG_DEAL":
 				return ThreshSigDealCall;
@@ -30,8 +52,24 @@ public enum CallType {
 				return ThreshSigSignCall;
 			case "__CALL_THRESHSIG_VERI":
 				return ThreshSigVerifyCall;
+			case "__CALL_THRESHSIG_BSIG":
+				return ThreshSigBatchSignCall;
+			case "__CALL_THRESHSIG_BVER":
+				return ThreshSigBatchVerifyCall;
+			case "__CALL_XSP_STATS":
+				return XSPStatsCall;
 		}
-		
+
+		return NoOp;
+	}
+
+	static CallType parseCode(int code) {
+
+		for (CallType t : values()) {
+			if (t.code == code)
+				return t;
+		}
+
 		return NoOp;
 	}
 }
@@ -0,0 +1,412 @@
+package core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import threshsig.CostReport;
+import threshsig.GroupKey;
+import threshsig.KeyShare;
+import threshsig.SigShare;
+
+/* XSP binary payloads
+ *
+ * Negotiated per call with XSPFrame.FLAG_BINARY. All integers are big endian; 'bytes' is a 4 byte length
+ * followed by that many raw bytes. Keys and shares travel in their threshsig raw encodings (getEncoded),
+ * i.e. length-prefixed big integer magnitudes with fixed-width ids, with no Base64 and no JSON around them.
+ *
+ * 	deal   call: int key-size, int l, int k
+ * 	deal   ret : bytes group-key, int count, count x (int id, bytes share)
+ * 	sign   call: bytes share, bytes msg
+ * 	sign   ret : bytes signature
+ * 	verify call: bytes group-key, int count, count x bytes signature, bytes msg
+ * 	verify ret : byte valid (0 or 1), and for group keys with verifiers: int count, count x int position of a
+ * 	             signature rejected by its proof
+ *
+ * 	batch sign   call: int count, count x (bytes share, bytes msg)
+ * 	batch sign   ret : int count, count x bytes signature (empty for items that failed)
+ * 	batch verify call: bytes group-key (empty if every item carries its own), int count, count x verify call
+ * 	                   (whose group-key may be empty to use the batch one)
+ * 	batch verify ret : int count, (count + 7) / 8 bytes of valid bits, item i at bit (i % 8) of byte i / 8
+ *
+ * Replies with XSPFrame.FLAG_COST_REPORT end with a cost report, whose size is in the last 4 bytes:
+ * 	long combinations, long modpows, long exponent-bits, int count, count x (bytes phase, long nanos),
+ * 	int report size (including these 4 bytes)
+ *
+ * Replies with XSPFrame.FLAG_TRACE_ID end with the server side timings of the call, after any cost report:
+ * 	long queue-ns, long parse-ns, long crypto-ns, long server-ns
+ */
+class XSPBinaryCodec implements XSPCodec {
+
+	static final XSPBinaryCodec INSTANCE = new XSPBinaryCodec();
+
+	static final int TIMINGS_SIZE = 4 * 8;
+
+	@Override
+	public DealRequest decodeDealRequest(byte[] payload) throws IOException {
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(payload);
+			return new DealRequest(bb.getInt(), bb.getInt(), bb.getInt());
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary deal call");
+		}
+	}
+
+	@Override
+	public byte[] encodeDealResponse(GroupKey gk, KeyShare[] shares) throws IOException {
+		byte[] gkBytes = gk.getEncoded();
+		byte[][] shareBytes = new byte[shares.length][];
+
+		int len = 4 + gkBytes.length + 4;
+		for (int i = 0; i < shares.length; i++) {
+			shareBytes[i] = shares[i].getEncoded();
+			len += 4 + 4 + shareBytes[i].length;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		putBytes(bb, gkBytes);
+		bb.putInt(shares.length);
+		for (int i = 0; i < shares.length; i++) {
+			bb.putInt(shares[i].getId());
+			putBytes(bb, shareBytes[i]);
+		}
+		return bb.array();
+	}
+
+	@Override
+	public SignRequest decodeSignRequest(byte[] payload) throws IOException {
+		try {
+			return signRequest(ByteBuffer.wrap(payload));
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary sign call");
+		}
+	}
+
+	@Override
+	public byte[] encodeSignResponse(SigShare sig) throws IOException {
+		byte[] sigBytes = sig.getEncoded();
+		ByteBuffer bb = ByteBuffer.allocate(4 + sigBytes.length);
+		putBytes(bb, sigBytes);
+		return bb.array();
+	}
+
+	@Override
+	public VerifyRequest decodeVerifyRequest(byte[] payload) throws IOException {
+		try {
+			return verifyRequest(ByteBuffer.wrap(payload), null);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary verify call");
+		}
+	}
+
+	@Override
+	public byte[] encodeVerifyResponse(boolean valid, List<Integer> rejected) throws IOException {
+		if (rejected == null)
+			return new byte[] { (byte) (valid ? 1 : 0) };
+
+		ByteBuffer bb = ByteBuffer.allocate(1 + 4 + 4 * rejected.size());
+		bb.put((byte) (valid ? 1 : 0));
+		bb.putInt(rejected.size());
+		for (int position : rejected) {
+			bb.putInt(position);
+		}
+		return bb.array();
+	}
+
+	@Override
+	public SignRequest[] decodeBatchSignRequest(byte[] payload) throws IOException {
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(payload);
+			SignRequest[] reqs = new SignRequest[getCount(bb, 8)];
+			for (int i = 0; i < reqs.length; i++) {
+				ByteBuffer item = itemSlice(bb, 2);
+				try {
+					reqs[i] = signRequest(item);
+				} catch (Exception ex) {
+					XSPLog.warn("Detected malformed batch item " + i);
+					XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+				}
+			}
+			return reqs;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary batch sign call");
+		}
+	}
+
+	@Override
+	public byte[] encodeBatchSignResponse(SigShare[] sigs) throws IOException {
+		byte[][] sigBytes = new byte[sigs.length][];
+
+		int len = 4;
+		for (int i = 0; i < sigs.length; i++) {
+			sigBytes[i] = sigs[i] == null ? new byte[0] : sigs[i].getEncoded();
+			len += 4 + sigBytes[i].length;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		bb.putInt(sigs.length);
+		for (byte[] b : sigBytes) {
+			putBytes(bb, b);
+		}
+		return bb.array();
+	}
+
+	@Override
+	public VerifyRequest[] decodeBatchVerifyRequest(byte[] payload) throws IOException {
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(payload);
+			byte[] commonBytes = getBytes(bb);
+			GroupKey common = commonBytes.length == 0 ? null : GroupKey.fromEncoded(commonBytes);
+
+			VerifyRequest[] reqs = new VerifyRequest[getCount(bb, 12)];
+			for (int i = 0; i < reqs.length; i++) {
+				ByteBuffer item = verifyItemSlice(bb);
+				try {
+					reqs[i] = verifyRequest(item, common);
+				} catch (Exception ex) {
+					XSPLog.warn("Detected malformed batch item " + i);
+					XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+				}
+			}
+			return reqs;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary batch verify call");
+		}
+	}
+
+	@Override
+	public byte[] encodeBatchVerifyResponse(boolean[] valid) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(4 + (valid.length + 7) / 8);
+		bb.putInt(valid.length);
+
+		byte[] bits = new byte[(valid.length + 7) / 8];
+		for (int i = 0; i < valid.length; i++) {
+			if (valid[i])
+				bits[i / 8] |= 1 << (i % 8);
+		}
+		bb.put(bits);
+		return bb.array();
+	}
+
+	@Override
+	public byte[] appendCostReport(byte[] response, CostReport cost) throws IOException {
+		Map<String, Long> phases = cost.getPhaseNanos();
+		byte[][] names = new byte[phases.size()][];
+
+		int reportLen = 8 + 8 + 8 + 4 + 4;
+		int i = 0;
+		for (String phase : phases.keySet()) {
+			names[i] = phase.getBytes(StandardCharsets.UTF_8);
+			reportLen += 4 + names[i].length + 8;
+			i++;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(response.length + reportLen);
+		bb.put(response);
+		bb.putLong(cost.getCombinations());
+		bb.putLong(cost.getModPows());
+		bb.putLong(cost.getExponentBits());
+		bb.putInt(names.length);
+		i = 0;
+		for (long nanos : phases.values()) {
+			putBytes(bb, names[i++]);
+			bb.putLong(nanos);
+		}
+		bb.putInt(reportLen);
+		return bb.array();
+	}
+
+	@Override
+	public byte[] appendTimings(byte[] response, XSPStats.Timer timer) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(response.length + TIMINGS_SIZE);
+		bb.put(response);
+		bb.putLong(timer.queueNanos());
+		bb.putLong(timer.parseNanos());
+		bb.putLong(timer.cryptoNanos());
+		bb.putLong(timer.elapsedNanos());
+		return bb.array();
+	}
+
+	private static SignRequest signRequest(ByteBuffer bb) throws IOException {
+		KeyShare sh = KeyShare.fromEncoded(getBytes(bb));
+		if (sh == null)
+			throw new IOException("Malformed key share in binary payload");
+		return new SignRequest(sh, getBytes(bb));
+	}
+
+	/* a verify call body; its group key field may be left empty when a batch supplies a common one */
+	private static VerifyRequest verifyRequest(ByteBuffer bb, GroupKey common) throws IOException {
+		byte[] gkBytes = getBytes(bb);
+		GroupKey gk = gkBytes.length == 0 && common != null ? common : GroupKey.fromEncoded(gkBytes);
+		if (gk == null)
+			throw new IOException("Malformed group key in binary payload");
+
+		int count = getCount(bb, 4);
+		SigShare[] ssh = new SigShare[count];
+		for (int i = 0; i < count; i++) {
+			byte[] sigBytes = getBytes(bb);
+			try {
+				ssh[i] = SigShare.fromEncoded(sigBytes);
+			} catch (Exception ex) {
+				XSPLog.warn("Detected malformed sig"); // left null, as with JSON
+				XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+			}
+		}
+
+		return new VerifyRequest(gk, ssh, getBytes(bb));
+	}
+
+	/* reads an item count, checking it against the minimum size an item takes on the wire */
+	private static int getCount(ByteBuffer bb, int minItemSize) throws IOException {
+		int count = bb.getInt();
+		if (count < 0 || count > bb.remaining() / minItemSize)
+			throw new IOException("Bad item count " + count + " in binary payload");
+		return count;
+	}
+
+	/*
+	 * Cuts the next item made of n length-prefixed fields out of a batch, so that a malformed item can be
+	 * skipped without losing track of where the following one starts.
+	 */
+	private static ByteBuffer itemSlice(ByteBuffer bb, int fields) throws IOException {
+		int start = bb.position();
+		for (int f = 0; f < fields; f++) {
+			skipBytes(bb);
+		}
+		return sliceFrom(bb, start);
+	}
+
+	private static ByteBuffer verifyItemSlice(ByteBuffer bb) throws IOException {
+		int start = bb.position();
+		skipBytes(bb);
+		int count = getCount(bb, 4);
+		for (int i = 0; i < count + 1; i++) {
+			skipBytes(bb);
+		}
+		return sliceFrom(bb, start);
+	}
+
+	private static void skipBytes(ByteBuffer bb) throws IOException {
+		int len = bb.getInt();
+		if (len < 0 || len > bb.remaining())
+			throw new IOException("Bad field length " + len + " in binary payload");
+		bb.position(bb.position() + len);
+	}
+
+	private static ByteBuffer sliceFrom(ByteBuffer bb, int start) {
+		ByteBuffer item = bb.duplicate();
+		item.position(start).limit(bb.position());
+		return item;
+	}
+
+	// client side, for tools that speak the binary encoding
+	//............................................................................
+
+	static byte[] encodeDealRequest(int keySize, int l, int k) {
+		return ByteBuffer.allocate(12).putInt(keySize).putInt(l).putInt(k).array();
+	}
+
+	static byte[] encodeSignRequest(byte[] share, byte[] message) {
+		ByteBuffer bb = ByteBuffer.allocate(4 + share.length + 4 + message.length);
+		putBytes(bb, share);
+		putBytes(bb, message);
+		return bb.array();
+	}
+
+	static byte[] encodeVerifyRequest(byte[] groupKey, byte[][] sigs, byte[] message) {
+		int len = 4 + groupKey.length + 4 + 4 + message.length;
+		for (byte[] sig : sigs) {
+			len += 4 + sig.length;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		putBytes(bb, groupKey);
+		bb.putInt(sigs.length);
+		for (byte[] sig : sigs) {
+			putBytes(bb, sig);
+		}
+		putBytes(bb, message);
+		return bb.array();
+	}
+
+	static byte[] encodeBatchSignRequest(byte[][] shares, byte[][] messages) {
+		int len = 4;
+		for (int i = 0; i < shares.length; i++) {
+			len += 4 + shares[i].length + 4 + messages[i].length;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		bb.putInt(shares.length);
+		for (int i = 0; i < shares.length; i++) {
+			putBytes(bb, shares[i]);
+			putBytes(bb, messages[i]);
+		}
+		return bb.array();
+	}
+
+	/* items are verify call bodies (encodeVerifyRequest), with an empty group key to use the common one */
+	static byte[] encodeBatchVerifyRequest(byte[] commonGroupKey, byte[][] items) {
+		int len = 4 + commonGroupKey.length + 4;
+		for (byte[] item : items) {
+			len += item.length;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		putBytes(bb, commonGroupKey);
+		bb.putInt(items.length);
+		for (byte[] item : items) {
+			bb.put(item);
+		}
+		return bb.array();
+	}
+
+	/* returns the signature bytes of a sign return */
+	static byte[] decodeSignResponse(byte[] payload) throws IOException {
+		return getBytes(ByteBuffer.wrap(payload));
+	}
+
+	static boolean decodeVerifyResponse(byte[] payload) {
+		return payload.length > 0 && payload[0] == 1;
+	}
+
+	/* returns the signature bytes of each item of a batch sign return, empty for failed items */
+	static byte[][] decodeBatchSignResponse(byte[] payload) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		byte[][] sigs = new byte[getCount(bb, 4)][];
+		for (int i = 0; i < sigs.length; i++) {
+			sigs[i] = getBytes(bb);
+		}
+		return sigs;
+	}
+
+	static boolean[] decodeBatchVerifyResponse(byte[] payload) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		int count = bb.getInt();
+		if (count < 0 || (count + 7) / 8 > bb.remaining())
+			throw new IOException("Bad item count " + count + " in binary payload");
+
+		boolean[] valid = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			valid[i] = (payload[4 + i / 8] & (1 << (i % 8))) != 0;
+		}
+		return valid;
+	}
+
+	static void putBytes(ByteBuffer bb, byte[] b) {
+		bb.putInt(b.length);
+		bb.put(b);
+	}
+
+	static byte[] getBytes(ByteBuffer bb) throws IOException {
+		int len = bb.getInt();
+		if (len < 0 || len > bb.remaining())
+			throw new IOException("Bad field length " + len + " in binary payload");
+
+		byte[] b = new byte[len];
+		bb.get(b);
+		return b;
+	}
+}
@@ -0,0 +1,392 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import threshsig.KeyShare;
+
+/* XSP traffic capture
+ *
+ * Opt-in recorder of the calls a server receives, for replaying production-like traffic against another
+ * build or configuration with XSPReplay. Receiving threads only queue the frame; a background writer
+ * redacts and appends it to the capture file. When the writer falls behind and the queue is full, calls
+ * are left out of the capture and counted instead of stalling the server.
+ *
+ * Key shares never reach the file: every share of a sign or batch sign call is swapped for one with a random
+ * secret of the same bit length (the same substitute for every call that carried the same share), so the
+ * replayed calls cost the server what the originals did. Payloads that do not parse are dropped.
+ *
+ * Configuration (environment):
+ * 	- XSP_CAPTURE_FILE	file to capture received calls to (default none, capture off)
+ * 	- XSP_CAPTURE_QUEUE	calls waiting for the writer at most (default 4096)
+ *
+ * File format (big endian): int magic 'XSPC', short version, long capture start (epoch ms), then one record
+ * per call up to the end of the file:
+ * 	long arrival (ns after start), int connection, byte flags, short call code, int request id,
+ * 	16 byte trace id (with XSPFrame.FLAG_TRACE_ID only), int payload length (-1 if dropped), payload
+ */
+final class XSPCapture {
+
+	static final int MAGIC = 0x58535043;
+	static final short VERSION = 1;
+
+	public static String FILE = null;
+	public static int QUEUE = 4096;
+
+	private static final int SUBSTITUTES = 1024;			// distinct shares remembered
+
+	private static final BlockingQueue<Call> queue;
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final long startedAt = System.nanoTime();
+
+	// writer thread only
+	private static DataOutputStream out;
+	private static final SecureRandom random = new SecureRandom();
+	private static final Map<BigInteger, BigInteger> substitutes = new LinkedHashMap<BigInteger, BigInteger>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BigInteger, BigInteger> eldest) {
+			return size() > SUBSTITUTES;
+		}
+	};
+
+	static {
+		String fileEnvVar = System.getenv("XSP_CAPTURE_FILE");
+		if (fileEnvVar != null && !fileEnvVar.isEmpty()) {
+			FILE = fileEnvVar;
+		}
+
+		String queueEnvVar = System.getenv("XSP_CAPTURE_QUEUE");
+		if (queueEnvVar != null && !queueEnvVar.isEmpty()) {
+			QUEUE = Integer.parseInt(queueEnvVar);
+		}
+
+		queue = FILE != null ? open() : null;
+	}
+
+	private static class Call {
+
+		final XSPFrame frame;
+		final int connection;
+
+		Call(XSPFrame frame, int connection) {
+			this.frame = frame;
+			this.connection = connection;
+		}
+	}
+
+	/* a captured call, as read back by Reader */
+	static class Record {
+
+		long arrivalNanos;
+		int connection;
+		int flags;
+		CallType callType;
+		int requestId;
+		byte[] traceId;
+		byte[] payload;		// null if it was dropped
+
+		XSPFrame toFrame() {
+			return new XSPFrame(callType, flags, requestId, traceId, payload != null ? payload : new byte[0]);
+		}
+	}
+
+	private XSPCapture() {
+	}
+
+	static boolean isEnabled() {
+		return queue != null;
+	}
+
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/* queues a received call for the capture, if capturing */
+	static void record(XSPFrame frame, int connection) {
+		if (queue == null || frame.getCallType() == CallType.NoOp)
+			return;
+		if (!queue.offer(new Call(frame, connection)))
+			dropped.incrementAndGet();
+	}
+
+	private static BlockingQueue<Call> open() {
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FILE), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeLong(System.currentTimeMillis());
+		} catch (IOException e) {
+			XSPLog.error("Capture: cannot open " + FILE + ", not capturing", e);
+			return null;
+		}
+
+		final BlockingQueue<Call> calls = new ArrayBlockingQueue<Call>(QUEUE);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainForever(calls);
+			}
+		}, "xsp-capture");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (XSPCapture.class) {
+					drain(calls);
+					flush();
+				}
+			}
+		}, "xsp-capture-flush"));
+
+		XSPLog.info("Capture: recording received calls to " + FILE);
+		return calls;
+	}
+
+	private static void drainForever(BlockingQueue<Call> calls) {
+		long reportedDrops = 0;
+		while (true) {
+			try {
+				Call c = calls.poll(1, TimeUnit.SECONDS);
+				synchronized (XSPCapture.class) {
+					if (c != null) {
+						write(c);
+						drain(calls);
+					}
+					flush();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long drops = dropped.get();
+			if (drops > reportedDrops) {
+				XSPLog.warn("Capture: " + (drops - reportedDrops) + " calls left out, writer behind");
+				reportedDrops = drops;
+			}
+		}
+	}
+
+	private static void drain(BlockingQueue<Call> calls) {
+		Call c;
+		while ((c = calls.poll()) != null) {
+			write(c);
+		}
+	}
+
+	private static void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			XSPLog.error("Capture: flushing " + FILE + " failed", e);
+		}
+	}
+
+	private static void write(Call c) {
+		XSPFrame frame = c.frame;
+		byte[] payload = redact(frame);
+		try {
+			out.writeLong(frame.getReceivedAt() - startedAt);
+			out.writeInt(c.connection);
+			out.writeByte(frame.getFlags());
+			out.writeShort(frame.getCallType().getCode());
+			out.writeInt(frame.getRequestId());
+			if (frame.hasTraceId())
+				out.write(frame.getTraceId());
+			if (payload == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(payload.length);
+				out.write(payload);
+			}
+		} catch (IOException e) {
+			XSPLog.error("Capture: writing " + FILE + " failed", e);
+		}
+	}
+
+	// redaction
+	//............................................................................
+
+	/* the payload to capture, with its key shares substituted; null if it cannot be told free of secrets */
+	private static byte[] redact(XSPFrame frame) {
+		byte[] payload = frame.getPayload();
+		CallType t = frame.getCallType();
+		if (payload == null)
+			return null;
+		if (t != CallType.ThreshSigSignCall && t != CallType.ThreshSigBatchSignCall)
+			return payload; // no secrets in deal, verify and stats calls
+
+		try {
+			if (frame.isBinary())
+				return t == CallType.ThreshSigSignCall ? redactBinarySign(payload) : redactBinaryBatchSign(payload);
+
+			JsonObject call = readJson(payload);
+			if (t == CallType.ThreshSigSignCall)
+				return redactJsonSignItem(call).toString().getBytes(StandardCharsets.UTF_8);
+
+			JsonObjectBuilder batch = Json.createObjectBuilder();
+			for (Map.Entry<String, JsonValue> field : call.entrySet()) {
+				if (!field.getKey().equals("items")) {
+					batch.add(field.getKey(), field.getValue());
+					continue;
+				}
+				JsonArrayBuilder items = Json.createArrayBuilder();
+				for (JsonValue item : (JsonArray) field.getValue()) {
+					items.add(item instanceof JsonObject ? redactJsonSignItem((JsonObject) item) : item);
+				}
+				batch.add("items", items);
+			}
+			return batch.build().toString().getBytes(StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static byte[] redactBinarySign(byte[] payload) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		byte[] share = substitute(KeyShare.fromEncoded(XSPBinaryCodec.getBytes(bb))).getEncoded();
+		return XSPBinaryCodec.encodeSignRequest(share, XSPBinaryCodec.getBytes(bb));
+	}
+
+	private static byte[] redactBinaryBatchSign(byte[] payload) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		int count = bb.getInt();
+		if (count < 0 || count > bb.remaining() / 8)
+			throw new IOException("Bad item count " + count);
+
+		byte[][] shares = new byte[count][];
+		byte[][] messages = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			shares[i] = substitute(KeyShare.fromEncoded(XSPBinaryCodec.getBytes(bb))).getEncoded();
+			messages[i] = XSPBinaryCodec.getBytes(bb);
+		}
+		return XSPBinaryCodec.encodeBatchSignRequest(shares, messages);
+	}
+
+	private static JsonObject redactJsonSignItem(JsonObject item) {
+		JsonObjectBuilder redacted = Json.createObjectBuilder();
+		for (Map.Entry<String, JsonValue> field : item.entrySet()) {
+			if (field.getKey().equals("share"))
+				redacted.add("share", substitute(KeyShare.fromString(item.getString("share"))).toString());
+			else
+				redacted.add(field.getKey(), field.getValue());
+		}
+		return redacted.build();
+	}
+
+	/* the share with its secret swapped for a random one of the same bit length; public values are kept */
+	private static KeyShare substitute(KeyShare share) {
+		BigInteger secret = share.getSecret();
+		BigInteger fake = substitutes.get(secret);
+		if (fake == null) {
+			int bits = Math.max(1, secret.bitLength());
+			fake = new BigInteger(bits, random).setBit(bits - 1);
+			substitutes.put(secret, fake);
+		}
+		return new KeyShare(share.getId(), fake, share.getN(), share.getDelta(), share.getVerifier(),
+				share.getGroupVerifier());
+	}
+
+	private static JsonObject readJson(byte[] payload) {
+		JsonReader reader = Json.createReader(
+				new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+		try {
+			return reader.readObject();
+		} finally {
+			reader.close();
+		}
+	}
+
+	// reading back
+	//............................................................................
+
+	/* reads the calls of a capture file in the order they were received */
+	static class Reader implements Closeable {
+
+		private final DataInputStream in;
+		private final long startedAtMillis;
+
+		Reader(String file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			if (in.readInt() != MAGIC) {
+				in.close();
+				throw new IOException(file + " is not an XSP capture");
+			}
+			short version = in.readShort();
+			if (version != VERSION) {
+				in.close();
+				throw new IOException(file + ": unsupported capture version " + version);
+			}
+			startedAtMillis = in.readLong();
+		}
+
+		long getStartedAtMillis() {
+			return startedAtMillis;
+		}
+
+		/* the next call, or null at the end of the capture */
+		Record next() throws IOException {
+			Record r = new Record();
+			try {
+				r.arrivalNanos = in.readLong();
+			} catch (EOFException e) {
+				return null;
+			}
+
+			try {
+				r.connection = in.readInt();
+				r.flags = in.readUnsignedByte();
+				r.callType = CallType.parseCode(in.readUnsignedShort());
+				r.requestId = in.readInt();
+				if ((r.flags & XSPFrame.FLAG_TRACE_ID) != 0) {
+					r.traceId = new byte[XSPFrame.TRACE_ID_SIZE];
+					in.readFully(r.traceId);
+				}
+				int len = in.readInt();
+				if (len >= 0) {
+					r.payload = new byte[len];
+					in.readFully(r.payload);
+				}
+			} catch (EOFException e) {
+				return null; // cut short by the server going down mid-write
+			}
+			return r;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package core;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/* XSP selector transport
+ *
+ * Alternative to the juds thread-per-connection server, built on JDK unix domain socket channels.
+ * A single selector thread accepts, reads and writes; complete calls are handed off to the crypto
+ * worker pool and their responses are queued back to the selector. Idle connections cost a buffer
+ * instead of a thread.
+ *
+ * Calls without a request id run one at a time per connection: reading pauses while such a call is at a
+ * worker, which keeps responses in request order and pushes back on clients that pipeline faster than we
+ * can sign. Calls with a request id are handed off as they arrive, up to MAX_IN_FLIGHT per connection,
+ * and their replies are written in completion order.
+ */
+public class XSPChannelServer implements Runnable {
+
+	private static final long SELECT_TIMEOUT_MS = 1000;	// also the idle sweep period
+	private static final ByteBuffer NO_PAYLOAD = ByteBuffer.allocate(0);
+
+	private Path socketPath;
+	private int backlog;
+	private ExecutorService workers;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private ConcurrentLinkedQueue<ChannelConnection> completed = new ConcurrentLinkedQueue<ChannelConnection>();
+
+	private int nconns;
+
+	public XSPChannelServer(String socketFileName, int backlog, ExecutorService workers) {
+		this.socketPath = Paths.get(socketFileName);
+		this.backlog = backlog;
+		this.workers = workers;
+	}
+
+	public void bind() throws IOException {
+		Files.deleteIfExists(socketPath); // stale socket file from a previous run
+
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(socketPath), backlog);
+		serverChannel.configureBlocking(false);
+
+		selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	@Override
+	public void run() {
+
+		while (serverChannel.isOpen()) {
+			try {
+				selector.select(SELECT_TIMEOUT_MS);
+
+				ChannelConnection done;
+				while ((done = completed.poll()) != null) {
+					respond(done);
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					try {
+						if (!key.isValid())
+							continue;
+
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							ChannelConnection conn = (ChannelConnection) key.attachment();
+							if (key.isReadable())
+								read(conn);
+							if (key.isValid() && key.isWritable())
+								write(conn);
+						}
+					} catch (IOException e) {
+						Object att = key.attachment();
+						if (att instanceof ChannelConnection && ((ChannelConnection) att).isMidCall())
+							XSPStats.error(XSPStats.ErrorClass.IO);
+						close(key);
+					}
+				}
+
+				closeIdle();
+
+			} catch (Exception e) {
+				XSPServer.logError(new Object[] { "Selector loop failure" }, e);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			ChannelConnection conn = new ChannelConnection(channel, ++nconns);
+			conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+			XSPStats.connectionOpened();
+		}
+	}
+
+	private void read(ChannelConnection conn) throws IOException {
+		boolean fresh = conn.in.position() == 0;
+		int n = conn.channel.read(conn.in);
+		if (n < 0) {
+			close(conn.key);
+			return;
+		}
+		if (fresh && n > 0)
+			conn.firstByteAt = System.nanoTime();
+
+		conn.lastActive = System.currentTimeMillis();
+		dispatchNext(conn);
+	}
+
+	/* hands the complete calls buffered on this connection to workers, as far as ordering allows */
+	private void dispatchNext(ChannelConnection conn) throws IOException {
+		while (!conn.ordered && conn.inFlight < XSPServer.MAX_IN_FLIGHT) {
+			if (conn.held == null)
+				conn.held = conn.nextFrame();
+
+			XSPFrame recvFrame = conn.held;
+			if (recvFrame == null)
+				break;
+			if (!recvFrame.hasRequestId() && conn.inFlight > 0)
+				break; // answered in order, so it waits for the calls before it
+
+			conn.held = null;
+			conn.inFlight++;
+			conn.ordered = !recvFrame.hasRequestId();
+			submit(conn, recvFrame);
+		}
+
+		updateInterest(conn);
+	}
+
+	private void submit(final ChannelConnection conn, final XSPFrame recvFrame) throws IOException {
+		XSPCapture.record(recvFrame, conn.id);
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						XSPFrame respFrame = XSPServer.dispatch(recvFrame);
+						if (respFrame == null)
+							conn.failed = true;
+						else
+							conn.replies.add(respFrame);
+					} catch (Exception e) {
+						XSPServer.logError(new Object[] { "Call failed on connection #" + conn.id
+								+ XSPLog.trace(recvFrame) }, e);
+						conn.failed = true;
+					}
+					completed.add(conn);
+					selector.wakeup();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// all workers busy and the queue is full: answer right away so the client can back off
+			conn.replies.add(XSPServer.busyResponse().asReplyTo(recvFrame));
+			completed.add(conn);
+			selector.wakeup();
+		}
+	}
+
+	/* runs on the selector thread once a worker has finished a call */
+	private void respond(ChannelConnection conn) {
+		if (!conn.key.isValid())
+			return;
+
+		if (conn.failed) {
+			close(conn.key); // nothing to answer with, so the client cannot expect more from us
+			return;
+		}
+
+		try {
+			write(conn);
+		} catch (IOException e) {
+			close(conn.key);
+		}
+	}
+
+	private void write(ChannelConnection conn) throws IOException {
+		while (true) {
+			if (conn.out == null) {
+				XSPFrame reply = conn.replies.poll();
+				if (reply == null)
+					break;
+				conn.setOut(reply);
+			}
+
+			conn.channel.write(conn.out);
+			if (conn.out[0].hasRemaining() || conn.out[1].hasRemaining())
+				break; // wait for OP_WRITE
+
+			conn.out = null;
+			conn.inFlight--;
+			conn.ordered = false;
+			conn.calls++;
+			conn.lastActive = System.currentTimeMillis();
+
+			if (!XSPServer.KEEP_ALIVE || conn.mode == XSPSocketConnection.WireMode.LEGACY) {
+				close(conn.key);
+				return;
+			}
+		}
+
+		dispatchNext(conn); // the client may have pipelined its next calls already
+	}
+
+	/* reads while more calls may be handed off, writes while replies are pending */
+	private void updateInterest(ChannelConnection conn) {
+		if (!conn.key.isValid())
+			return;
+
+		int ops = 0;
+		if (conn.held == null && !conn.ordered && conn.inFlight < XSPServer.MAX_IN_FLIGHT)
+			ops |= SelectionKey.OP_READ;
+		if (conn.out != null)
+			ops |= SelectionKey.OP_WRITE;
+		conn.key.interestOps(ops);
+	}
+
+	private void closeIdle() {
+		if (XSPServer.IDLE_TIMEOUT_MS <= 0)
+			return;
+
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Object att = key.attachment();
+			if (att instanceof ChannelConnection) {
+				ChannelConnection conn = (ChannelConnection) att;
+				if (conn.inFlight == 0 && now - conn.lastActive > XSPServer.IDLE_TIMEOUT_MS)
+					close(key);
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// already gone
+		}
+
+		Object att = key.attachment();
+		if (!(att instanceof ChannelConnection) || ((ChannelConnection) att).closed)
+			return;
+
+		((ChannelConnection) att).closed = true;
+		XSPStats.connectionClosed();
+		if (((ChannelConnection) att).calls > 1)
+			XSPLog.info("xsp-selector: Closing connection #" + ((ChannelConnection) att).id + " after "
+					+ ((ChannelConnection) att).calls + " calls");
+	}
+
+	private static class ChannelConnection {
+
+		SocketChannel channel;
+		SelectionKey key;
+		int id;
+
+		ByteBuffer in = ByteBuffer.allocate(XSPServer.MTU);	// kept in write mode between reads
+		ByteBuffer prefix = ByteBuffer.allocate(XSPFrame.MAX_PREFIX_SIZE);
+		ByteBuffer[] gather = new ByteBuffer[2];
+		ByteBuffer[] out;					// prefix and payload of the reply being written
+		ConcurrentLinkedQueue<XSPFrame> replies = new ConcurrentLinkedQueue<XSPFrame>();
+		XSPSocketConnection.WireMode mode = XSPSocketConnection.WireMode.FRAMED;
+
+		XSPFrame held;				// next call, waiting for its turn
+		int inFlight;				// calls handed off and not yet answered
+		boolean ordered;			// one of them is a call without request id
+		volatile boolean failed;		// a call could not be answered
+		boolean closed;
+		int calls;
+		long lastActive = System.currentTimeMillis();
+		long firstByteAt;			// of the call at the start of 'in'
+
+		ChannelConnection(SocketChannel channel, int id) {
+			this.channel = channel;
+			this.id = id;
+		}
+
+		/* part of a call read, or calls not answered yet */
+		boolean isMidCall() {
+			return in.position() > 0 || held != null || inFlight > 0;
+		}
+
+		/* sets up a gathering write of the reply, straight from its payload array */
+		void setOut(XSPFrame reply) {
+			prefix.clear();
+			XSPFrame.writePrefix(prefix, reply, mode);
+			prefix.flip();
+
+			byte[] payload = reply.getPayload();
+			gather[0] = prefix;
+			gather[1] = payload != null ? ByteBuffer.wrap(payload) : NO_PAYLOAD;
+			out = gather;
+		}
+
+		/*
+		 * Takes one complete call out of the input buffer, growing the buffer when a frame is larger
+		 * than what it can hold. Returns null while the call is still incomplete.
+		 */
+		XSPFrame nextFrame() throws IOException {
+			if (in.position() == 0)
+				return null;
+
+			if (in.get(0) != XSPFrame.MAGIC) {
+				// legacy: whatever arrived so far is the whole call, as with the juds server
+				mode = XSPSocketConnection.WireMode.LEGACY;
+				XSPFrame frame = XSPFrame.parseLegacy(in.array(), in.position());
+				in.clear();
+				XSPEvents.received(frame, mode, firstByteAt);
+				return frame;
+			}
+
+			mode = XSPSocketConnection.WireMode.FRAMED;
+			if (in.position() < XSPFrame.HEADER_SIZE)
+				return null;
+
+			int flags = XSPFrame.headerFlags(in, 0);
+			int payloadPos = XSPFrame.HEADER_SIZE + XSPFrame.headerExtension(flags);
+			int frameLen = payloadPos + XSPFrame.headerPayloadLength(in, 0);
+			if (in.position() < frameLen) {
+				if (in.capacity() < frameLen) {
+					ByteBuffer grown = ByteBuffer.allocate(frameLen);
+					in.flip();
+					grown.put(in);
+					in = grown;
+				}
+				return null;
+			}
+
+			byte[] payload = new byte[frameLen - payloadPos];
+			in.flip();
+			CallType callType = XSPFrame.headerCallType(in, 0);
+			in.position(XSPFrame.HEADER_SIZE);
+			int requestId = (flags & XSPFrame.FLAG_REQUEST_ID) != 0 ? in.getInt() : 0;
+			byte[] traceId = null;
+			if ((flags & XSPFrame.FLAG_TRACE_ID) != 0) {
+				traceId = new byte[XSPFrame.TRACE_ID_SIZE];
+				in.get(traceId);
+			}
+			in.get(payload);
+			in.compact();
+
+			if (in.position() == 0 && in.capacity() > XSPServer.MTU)
+				in = ByteBuffer.allocate(XSPServer.MTU); // do not keep a grown buffer around for an idle connection
+
+			XSPFrame frame = new XSPFrame(callType, flags, requestId, traceId, payload);
+			XSPEvents.received(frame, mode, firstByteAt);
+			firstByteAt = frame.getReceivedAt(); // a pipelined call came in with this one
+			return frame;
+		}
+	}
+}
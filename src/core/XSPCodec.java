@@ -0,0 +1,82 @@
+package core;
+
+import java.io.IOException;
+import java.util.List;
+
+import threshsig.CostReport;
+import threshsig.GroupKey;
+import threshsig.KeyShare;
+import threshsig.SigShare;
+
+/* XSP payload encoding
+ *
+ * Turns call payloads into threshsig objects and results back into payloads, so that call handling
+ * does not depend on how the client chose to encode its call (see XSPFrame.FLAG_BINARY).
+ */
+interface XSPCodec {
+
+	DealRequest decodeDealRequest(byte[] payload) throws IOException;
+
+	byte[] encodeDealResponse(GroupKey gk, KeyShare[] shares) throws IOException;
+
+	SignRequest decodeSignRequest(byte[] payload) throws IOException;
+
+	byte[] encodeSignResponse(SigShare sig) throws IOException;
+
+	VerifyRequest decodeVerifyRequest(byte[] payload) throws IOException;
+
+	/* rejected: positions of the signatures whose proofs failed, for group keys with verifiers; null otherwise */
+	byte[] encodeVerifyResponse(boolean valid, List<Integer> rejected) throws IOException;
+
+	/* batch items that fail to decode come back as null and get a failed (null / false) result */
+	SignRequest[] decodeBatchSignRequest(byte[] payload) throws IOException;
+
+	byte[] encodeBatchSignResponse(SigShare[] sigs) throws IOException;
+
+	VerifyRequest[] decodeBatchVerifyRequest(byte[] payload) throws IOException;
+
+	byte[] encodeBatchVerifyResponse(boolean[] valid) throws IOException;
+
+	/* adds the crypto cost of a call to its encoded response, for calls with XSPFrame.FLAG_COST_REPORT */
+	byte[] appendCostReport(byte[] response, CostReport cost) throws IOException;
+
+	/* adds the server side timings of a call to its encoded response, for calls with XSPFrame.FLAG_TRACE_ID */
+	byte[] appendTimings(byte[] response, XSPStats.Timer timer) throws IOException;
+
+	static class DealRequest {
+
+		final int keySize;
+		final int l;
+		final int k;
+
+		DealRequest(int keySize, int l, int k) {
+			this.keySize = keySize;
+			this.l = l;
+			this.k = k;
+		}
+	}
+
+	static class SignRequest {
+
+		final KeyShare share;
+		final byte[] message;
+
+		SignRequest(KeyShare share, byte[] message) {
+			this.share = share;
+			this.message = message;
+		}
+	}
+
+	static class VerifyRequest {
+
+		final GroupKey groupKey;
+		final SigShare[] sigs;		// null entries for shares that failed to parse
+		final byte[] message;
+
+		VerifyRequest(GroupKey groupKey, SigShare[] sigs, byte[] message) {
+			this.groupKey = groupKey;
+			this.sigs = sigs;
+			this.message = message;
+		}
+	}
+}
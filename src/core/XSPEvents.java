@@ -0,0 +1,106 @@
+package core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/* XSP flight recorder events
+ *
+ * Always emitted: they cost next to nothing while no recording runs, so peers can be profiled live with
+ * e.g. -XX:StartFlightRecording=filename=xsp.jfr (or jcmd <pid> JFR.start) and the events read
+ * with "jfr print --categories XSP xsp.jfr". Together with the threshsig events (verify attempts, signs and
+ * dealer phases) they split a slow call into socket read, queue wait, decode, crypto and encode time.
+ */
+final class XSPEvents {
+
+	@Name("xsp.CallReceived")
+	@Label("Call Received")
+	@Category({ "XSP", "Calls" })
+	@Description("A complete call read off a connection")
+	@StackTrace(false)
+	static final class CallReceived extends Event {
+
+		@Label("Call")
+		String call;
+
+		@Label("Wire Mode")
+		String mode;
+
+		@Label("Binary")
+		boolean binary;
+
+		@Label("Request Id")
+		int requestId;
+
+		@Label("Trace Id")
+		String traceId;
+
+		@Label("Payload Size")
+		@DataAmount
+		int payloadSize;
+
+		@Label("Read Time")
+		@Description("From the first byte of the call to its last")
+		@Timespan
+		long readTime;
+	}
+
+	@Name("xsp.CallDispatched")
+	@Label("Call Dispatched")
+	@Category({ "XSP", "Calls" })
+	@Description("A call run by a worker, from pick-up to its reply being built")
+	@StackTrace(false)
+	static final class CallDispatched extends Event {
+
+		@Label("Call")
+		String call;
+
+		@Label("Trace Id")
+		String traceId;
+
+		@Label("Queue Time")
+		@Description("From the call being received to a worker picking it up")
+		@Timespan
+		long queueTime;
+
+		@Label("Parse Time")
+		@Timespan
+		long parseTime;
+
+		@Label("Crypto Time")
+		@Timespan
+		long cryptoTime;
+
+		@Label("Serialize Time")
+		@Timespan
+		long serializeTime;
+
+		@Label("Succeeded")
+		boolean ok;
+	}
+
+	private XSPEvents() {
+	}
+
+	/* records the receipt of 'frame', whose first byte came in at 'firstByteAt' (System.nanoTime) */
+	static void received(XSPFrame frame, XSPSocketConnection.WireMode mode, long firstByteAt) {
+		CallReceived event = new CallReceived();
+		if (!event.shouldCommit())
+			return;
+
+		byte[] payload = frame.getPayload();
+		event.call = frame.getCallType().getCallName();
+		event.mode = mode.name();
+		event.binary = frame.isBinary();
+		event.requestId = frame.getRequestId();
+		event.traceId = frame.getTraceIdString();
+		event.payloadSize = payload != null ? payload.length : 0;
+		event.readTime = frame.getReceivedAt() - firstByteAt;
+		event.commit();
+	}
+}
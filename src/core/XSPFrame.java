@@ -0,0 +1,219 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* XSP wire frame
+ *
+ * Framed mode header (big endian, 8 bytes):
+ * 	- magic 		(1 byte, 0xF5 - never a valid first byte of a legacy call name)
+ * 	- flags 		(1 byte, see FLAG_*)
+ * 	- call code 	(2 bytes, see CallType)
+ * 	- payload len 	(4 bytes)
+ * followed by a 4 byte request id when FLAG_REQUEST_ID is set, a 16 byte trace id when FLAG_TRACE_ID is set,
+ * then exactly 'payload len' bytes of payload.
+ *
+ * Calls carrying a request id are multiplexed: the server may run them concurrently with other calls of
+ * the same connection and answers each one as soon as it completes, tagged with the id of its call.
+ * Calls without one are answered in the order they were sent.
+ *
+ * A trace id is the caller's correlation id (e.g. the trace-id of a W3C trace context). It is opaque to us:
+ * it is logged with the call, recorded in its flight recorder events and statistics, and sent back with the
+ * reply, which then also ends with the server side timings of the call (see XSPCodec.appendTimings).
+ *
+ * Legacy mode is the original "<call name>\n<payload>" format, read in a single MTU sized chunk.
+ */
+public class XSPFrame {
+
+	public static final byte MAGIC = (byte) 0xF5;
+	public static final int HEADER_SIZE = 8;
+
+	/** payload uses XSPBinaryCodec instead of JSON; replies carry the flag back */
+	public static final int FLAG_BINARY = 0x01;
+
+	/** a request id follows the header; replies carry it back */
+	public static final int FLAG_REQUEST_ID = 0x02;
+	public static final int REQUEST_ID_SIZE = 4;
+
+	/** the reply reports the crypto work the call took (see XSPCodec.appendCostReport); replies carry it back */
+	public static final int FLAG_COST_REPORT = 0x04;
+
+	/** a trace id follows the header (and request id); replies carry it back, with the call's timings */
+	public static final int FLAG_TRACE_ID = 0x08;
+	public static final int TRACE_ID_SIZE = 16;
+
+	private CallType callType;
+	private int flags;
+	private int requestId;
+	private byte[] traceId;
+	private byte[] payload;
+	private long receivedAt = System.nanoTime();	// for calls, when they came off the wire
+
+	public XSPFrame(CallType callType, byte[] payload) {
+		this(callType, 0, payload);
+	}
+
+	public XSPFrame(CallType callType, int flags, byte[] payload) {
+		this(callType, flags, 0, payload);
+	}
+
+	public XSPFrame(CallType callType, int flags, int requestId, byte[] payload) {
+		this(callType, flags, requestId, null, payload);
+	}
+
+	/* 'traceId' is TRACE_ID_SIZE bytes, and only used along with FLAG_TRACE_ID */
+	public XSPFrame(CallType callType, int flags, int requestId, byte[] traceId, byte[] payload) {
+		this.callType = callType;
+		this.flags = flags;
+		this.requestId = requestId;
+		this.traceId = traceId;
+		this.payload = payload;
+	}
+
+	public CallType getCallType() {
+		return callType;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean isBinary() {
+		return (flags & FLAG_BINARY) != 0;
+	}
+
+	public boolean hasRequestId() {
+		return (flags & FLAG_REQUEST_ID) != 0;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public boolean hasTraceId() {
+		return (flags & FLAG_TRACE_ID) != 0;
+	}
+
+	public byte[] getTraceId() {
+		return traceId;
+	}
+
+	/* the trace id in hex, as it shows in logs, events and statistics; null without one */
+	public String getTraceIdString() {
+		if (!hasTraceId())
+			return null;
+
+		char[] hex = new char[TRACE_ID_SIZE * 2];
+		for (int i = 0; i < TRACE_ID_SIZE; i++) {
+			hex[2 * i] = Character.forDigit((traceId[i] >> 4) & 0xf, 16);
+			hex[2 * i + 1] = Character.forDigit(traceId[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	long getReceivedAt() {
+		return receivedAt;
+	}
+
+	/* this frame as a reply to 'call', i.e. tagged with its request and trace ids if it had them */
+	XSPFrame asReplyTo(XSPFrame call) {
+		int ids = call.flags & (FLAG_REQUEST_ID | FLAG_TRACE_ID);
+		if (ids == 0)
+			return this;
+		return new XSPFrame(callType, flags | ids, call.requestId, call.traceId, payload);
+	}
+
+	static void writeHeader(ByteBuffer bb, CallType t, int flags, int payloadLen) {
+		bb.put(MAGIC);
+		bb.put((byte) flags);
+		bb.putShort((short) t.getCode());
+		bb.putInt(payloadLen);
+	}
+
+	/* reads the flags of the header starting at 'pos' */
+	static int headerFlags(ByteBuffer bb, int pos) {
+		return bb.get(pos + 1) & 0xff;
+	}
+
+	/* bytes between the header and the payload of a frame with these flags */
+	static int headerExtension(int flags) {
+		return ((flags & FLAG_REQUEST_ID) != 0 ? REQUEST_ID_SIZE : 0) + ((flags & FLAG_TRACE_ID) != 0 ? TRACE_ID_SIZE : 0);
+	}
+
+	/* reads the call code of the header starting at 'pos' */
+	static CallType headerCallType(ByteBuffer bb, int pos) {
+		return CallType.parseCode(bb.getShort(pos + 2) & 0xffff);
+	}
+
+	/* reads and validates the payload length of the header starting at 'pos' */
+	static int headerPayloadLength(ByteBuffer bb, int pos) throws IOException {
+		int payloadLen = bb.getInt(pos + 4);
+		if (payloadLen < 0 || payloadLen > XSPServer.MAX_FRAME_SIZE)
+			throw new IOException("Frame of " + payloadLen + " bytes exceeds limit of " + XSPServer.MAX_FRAME_SIZE);
+		return payloadLen;
+	}
+
+	/* parses "<call name>\n<payload>" out of the first 'len' bytes of a legacy read */
+	static XSPFrame parseLegacy(byte[] recv, int len) throws IOException {
+		int nl = indexOf(recv, 0, len, (byte) 0x0a);
+		String callName = new String(recv, 0, nl < 0 ? len : nl, "UTF-8");
+
+		byte[] payload = null;
+		if (nl >= 0) {
+			int end = indexOf(recv, nl + 1, len, (byte) 0x0a);
+			payload = Arrays.copyOfRange(recv, nl + 1, end < 0 ? len : end);
+		}
+
+		return new XSPFrame(CallType.parseCall(callName), payload);
+	}
+
+	/*
+	 * Length of what goes on the wire before the payload: the header (and ids) in framed mode,
+	 * "<call name>\n" in legacy mode. Writers send this prefix and the payload array as they are, so
+	 * payloads are never copied into a joined buffer.
+	 */
+	static int prefixLength(XSPFrame frame, XSPSocketConnection.WireMode mode) {
+		if (mode == XSPSocketConnection.WireMode.FRAMED)
+			return HEADER_SIZE + headerExtension(frame.flags);
+		return frame.callType.getCallNameBytes().length + (frame.payload != null ? 1 : 0);
+	}
+
+	/* room for the prefix of any frame, in either mode */
+	static final int MAX_PREFIX_SIZE = maxPrefixLength();
+
+	private static int maxPrefixLength() {
+		int max = HEADER_SIZE + REQUEST_ID_SIZE + TRACE_ID_SIZE;
+		for (CallType t : CallType.values()) {
+			max = Math.max(max, t.getCallNameBytes().length + 1);
+		}
+		return max;
+	}
+
+	/* flags only travel in framed mode; legacy peers always speak JSON */
+	static void writePrefix(ByteBuffer bb, XSPFrame frame, XSPSocketConnection.WireMode mode) {
+		if (mode == XSPSocketConnection.WireMode.FRAMED) {
+			writeHeader(bb, frame.callType, frame.flags, frame.payload != null ? frame.payload.length : 0);
+			if (frame.hasRequestId())
+				bb.putInt(frame.requestId);
+			if (frame.hasTraceId())
+				bb.put(frame.traceId);
+		} else {
+			bb.put(frame.callType.getCallNameBytes());
+			if (frame.payload != null)
+				bb.put((byte) 0x0a);
+		}
+	}
+
+	private static int indexOf(byte[] b, int from, int to, byte value) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == value)
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,141 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* XSP latency histogram
+ *
+ * Log-linear buckets over nanoseconds: every power of two is split into SUB_BUCKETS linear buckets, so
+ * any recorded value is known to within 1/SUB_BUCKETS (about 3%) from one nanosecond up to MAX_VALUE.
+ * Recording is lock-free (one atomic increment) and allocation free; percentiles are read from a racy
+ * but consistent enough view of the counts, which is all a monitoring snapshot needs.
+ */
+public class XSPHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_SHIFT = 40 - SUB_BITS;		// values up to 2^41 ns, about 36 minutes
+	public static final long MAX_VALUE = (2L * SUB_BUCKETS << MAX_SHIFT) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		record(nanos, 1);
+	}
+
+	/* records 'count' occurrences of the same value */
+	public void record(long nanos, long count) {
+		if (nanos < 0)
+			nanos = 0;
+		else if (nanos > MAX_VALUE)
+			nanos = MAX_VALUE;
+
+		counts.addAndGet(index(nanos), count);
+		total.add(count);
+		sum.add(nanos * count);
+
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+			;
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param q quantile in [0, 1], e.g. 0.99
+	 * @return the upper bound of the bucket holding that quantile, capped at the largest recorded value
+	 */
+	public long getValueAtQuantile(double q) {
+		long n = 0;
+		int len = counts.length();
+		long[] snapshot = new long[len];
+		for (int i = 0; i < len; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(q * n));
+		long seen = 0;
+		for (int i = 0; i < len; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValueAt(i), max.get());
+		}
+		return max.get();
+	}
+
+	/* adds all of 'other' into this histogram */
+	public void add(XSPHistogram other) {
+		for (int i = 0; i < counts.length(); i++) {
+			long c = other.counts.get(i);
+			if (c != 0)
+				counts.addAndGet(i, c);
+		}
+		total.add(other.total.sum());
+		sum.add(other.sum.sum());
+
+		long om = other.max.get(), m;
+		while (om > (m = max.get()) && !max.compareAndSet(m, om))
+			;
+	}
+
+	/**
+	 * Corrects for coordinated omission, for values recorded by a client that waits for each reply before
+	 * sending its next call: while a call took longer than 'expectedIntervalNanos', the calls that would have
+	 * been sent meanwhile were not, so their (decreasing) waits are added as if they had been measured.
+	 *
+	 * @return a corrected copy; this histogram is left as it is
+	 */
+	public XSPHistogram copyCorrectedForCoordinatedOmission(long expectedIntervalNanos) {
+		XSPHistogram corrected = new XSPHistogram();
+		corrected.add(this);
+		if (expectedIntervalNanos <= 0)
+			return corrected;
+
+		for (int i = 0; i < counts.length(); i++) {
+			long c = counts.get(i);
+			if (c == 0)
+				continue;
+
+			long value = Math.min(highestValueAt(i), max.get());
+			for (long missed = value - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos) {
+				corrected.record(missed, c);
+			}
+		}
+		return corrected;
+	}
+
+	static int index(long v) {
+		if (v < SUB_BUCKETS)
+			return (int) v;
+
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestValueAt(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,478 @@
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParserFactory;
+
+import threshsig.CostReport;
+import threshsig.GroupKey;
+import threshsig.KeyShare;
+import threshsig.SigShare;
+
+/* The original JSON payloads, with threshsig objects as Base64 strings
+ *
+ * Calls are read field by field with a streaming parser and replies are generated straight into a
+ * per-thread output buffer, so no JsonObject tree is built on either side. Fields may come in any order
+ * and unknown fields are skipped, as with the tree based reader this replaces.
+ */
+class XSPJsonCodec implements XSPCodec {
+
+	static final XSPJsonCodec INSTANCE = new XSPJsonCodec();
+
+	// Json.createParser and friends look the provider up again on every call; these are thread safe and reused
+	private static final JsonParserFactory PARSERS = Json.createParserFactory(null);
+	private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+
+	private static final ThreadLocal<ByteArrayOutputStream> OUT = new ThreadLocal<ByteArrayOutputStream>() {
+		@Override
+		protected ByteArrayOutputStream initialValue() {
+			return new ByteArrayOutputStream(XSPServer.MTU);
+		}
+	};
+
+	@Override
+	public DealRequest decodeDealRequest(byte[] payload) throws IOException {
+		JsonParser p = parse(payload);
+		try {
+			int keySize = -1, l = -1, k = -1;
+
+			String field;
+			while ((field = nextField(p)) != null) {
+				switch (field) {
+				case "key-size":
+					keySize = readInt(p);
+					break;
+				case "l":
+					l = readInt(p);
+					break;
+				case "k":
+					k = readInt(p);
+					break;
+				default:
+					skipValue(p);
+				}
+			}
+
+			if (keySize < 0 || l < 0 || k < 0)
+				throw new IOException("Deal call is missing key-size, l or k");
+			return new DealRequest(keySize, l, k);
+		} finally {
+			p.close();
+		}
+	}
+
+	@Override
+	public byte[] encodeDealResponse(GroupKey gk, KeyShare[] keys) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject();
+		g.write("group-key", gk.toString());
+		g.writeStartArray("shares");
+		for (KeyShare sh : keys) {
+
+			// shares to json
+			g.writeStartObject().write("id", sh.getId()).write("share", sh.toString()).writeEnd();
+		}
+		g.writeEnd();
+		g.writeEnd();
+
+		return done(g, out);
+	}
+
+	@Override
+	public SignRequest decodeSignRequest(byte[] payload) throws IOException {
+		JsonParser p = parse(payload);
+		try {
+			return signRequest(readSignItem(p));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Override
+	public byte[] encodeSignResponse(SigShare sig) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject().write("id", sig.getId()).write("signature", sig.toString()).writeEnd();
+		return done(g, out);
+	}
+
+	@Override
+	public VerifyRequest decodeVerifyRequest(byte[] payload) throws IOException {
+		JsonParser p = parse(payload);
+		try {
+			VerifyItem item = readVerifyItem(p);
+			if (item.groupKey == null)
+				throw new IOException("Verify call is missing group-key");
+			GroupKey gk = GroupKey.fromString(item.groupKey);
+			if (gk == null)
+				throw new IOException("Verify call has a malformed group-key");
+			return verifyRequest(item, gk);
+		} finally {
+			p.close();
+		}
+	}
+
+	@Override
+	public byte[] encodeVerifyResponse(boolean valid, List<Integer> rejected) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject().write("valid", valid);
+		if (rejected != null) {
+			g.writeStartArray("rejected");
+			for (int position : rejected) {
+				g.write(position);
+			}
+			g.writeEnd();
+		}
+		g.writeEnd();
+		return done(g, out);
+	}
+
+	@Override
+	public SignRequest[] decodeBatchSignRequest(byte[] payload) throws IOException {
+		List<String[]> items = new ArrayList<String[]>();
+
+		JsonParser p = parse(payload);
+		try {
+			String field;
+			while ((field = nextField(p)) != null) {
+				if (!field.equals("items")) {
+					skipValue(p);
+					continue;
+				}
+
+				expect(p, Event.START_ARRAY);
+				Event e;
+				while ((e = p.next()) != Event.END_ARRAY) {
+					if (e == Event.START_OBJECT) {
+						items.add(readSignItem(p));
+					} else {
+						skipCurrent(p, e);
+						items.add(null);
+					}
+				}
+			}
+		} finally {
+			p.close();
+		}
+
+		SignRequest[] reqs = new SignRequest[items.size()];
+		for (int i = 0; i < reqs.length; i++) {
+			try {
+				reqs[i] = signRequest(items.get(i));
+			} catch (Exception ex) {
+				XSPLog.warn("Detected malformed batch item " + i);
+				XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+			}
+		}
+		return reqs;
+	}
+
+	@Override
+	public byte[] encodeBatchSignResponse(SigShare[] sigs) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject();
+		g.writeStartArray("signatures");
+		for (SigShare sig : sigs) {
+			if (sig == null)
+				g.writeNull();
+			else
+				g.writeStartObject().write("id", sig.getId()).write("signature", sig.toString()).writeEnd();
+		}
+		g.writeEnd();
+		g.writeEnd();
+
+		return done(g, out);
+	}
+
+	@Override
+	public VerifyRequest[] decodeBatchVerifyRequest(byte[] payload) throws IOException {
+		List<VerifyItem> items = new ArrayList<VerifyItem>();
+		String common = null;
+
+		JsonParser p = parse(payload);
+		try {
+			String field;
+			while ((field = nextField(p)) != null) {
+				switch (field) {
+				case "group-key":
+					// a block is usually checked against a single group key, which is then sent (and parsed) once
+					common = readString(p);
+					break;
+				case "items":
+					expect(p, Event.START_ARRAY);
+					Event e;
+					while ((e = p.next()) != Event.END_ARRAY) {
+						if (e == Event.START_OBJECT) {
+							items.add(readVerifyItem(p));
+						} else {
+							skipCurrent(p, e);
+							items.add(null);
+						}
+					}
+					break;
+				default:
+					skipValue(p);
+				}
+			}
+		} finally {
+			p.close();
+		}
+
+		GroupKey commonKey = common != null ? GroupKey.fromString(common) : null;
+
+		VerifyRequest[] reqs = new VerifyRequest[items.size()];
+		for (int i = 0; i < reqs.length; i++) {
+			try {
+				VerifyItem item = items.get(i);
+				GroupKey gk = item.groupKey != null ? GroupKey.fromString(item.groupKey) : commonKey;
+				if (gk != null)
+					reqs[i] = verifyRequest(item, gk);
+			} catch (Exception ex) {
+				XSPLog.warn("Detected malformed batch item " + i);
+				XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+			}
+		}
+		return reqs;
+	}
+
+	@Override
+	public byte[] encodeBatchVerifyResponse(boolean[] valid) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject();
+		g.writeStartArray("valid");
+		for (boolean v : valid) {
+			g.write(v);
+		}
+		g.writeEnd();
+		g.writeEnd();
+
+		return done(g, out);
+	}
+
+	/* adds a "cost" field: combinations, modpows, exponent-bits and the wall time of each crypto phase */
+	@Override
+	public byte[] appendCostReport(byte[] response, CostReport cost) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject();
+		g.writeStartObject("cost");
+		g.write("combinations", cost.getCombinations());
+		g.write("modpows", cost.getModPows());
+		g.write("exponent-bits", cost.getExponentBits());
+		g.writeStartObject("phases-us");
+		for (Map.Entry<String, Long> phase : cost.getPhaseNanos().entrySet()) {
+			g.write(phase.getKey(), phase.getValue() / 1e3);
+		}
+		g.writeEnd();
+		g.writeEnd();
+		g.writeEnd();
+
+		return appendField(response, done(g, out));
+	}
+
+	/* adds a "timing-us" field: queue, parse and crypto time, and the server's total up to the reply */
+	@Override
+	public byte[] appendTimings(byte[] response, XSPStats.Timer timer) throws IOException {
+		ByteArrayOutputStream out = out();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject();
+		g.writeStartObject("timing-us");
+		g.write("queue", timer.queueNanos() / 1e3);
+		g.write("parse", timer.parseNanos() / 1e3);
+		g.write("crypto", timer.cryptoNanos() / 1e3);
+		g.write("server", timer.elapsedNanos() / 1e3);
+		g.writeEnd();
+		g.writeEnd();
+
+		return appendField(response, done(g, out));
+	}
+
+	/*
+	 * Merges the single field object 'field' into the response object. Both come from our own generator, so
+	 * they start and end with the braces of their object.
+	 */
+	private static byte[] appendField(byte[] response, byte[] field) {
+		// response minus its closing brace, a comma, then the field minus its opening brace
+		byte[] joined = new byte[response.length + field.length - 1];
+		System.arraycopy(response, 0, joined, 0, response.length - 1);
+		joined[response.length - 1] = ',';
+		System.arraycopy(field, 1, joined, response.length, field.length - 1);
+		return joined;
+	}
+
+	/* raw fields of a verify call or batch item, decoded once the whole payload has been read */
+	private static class VerifyItem {
+		String groupKey;
+		List<String> signatures = new ArrayList<String>();
+		String msg;
+	}
+
+	/* reads the fields of an object whose START_OBJECT was just consumed; returns { share, msg } */
+	private static String[] readSignItem(JsonParser p) throws IOException {
+		String[] item = new String[2];
+
+		String field;
+		while ((field = nextField(p)) != null) {
+			switch (field) {
+			case "share":
+				item[0] = readString(p);
+				break;
+			case "msg":
+				item[1] = readString(p);
+				break;
+			default:
+				skipValue(p);
+			}
+		}
+		return item;
+	}
+
+	private static VerifyItem readVerifyItem(JsonParser p) throws IOException {
+		VerifyItem item = new VerifyItem();
+
+		String field;
+		while ((field = nextField(p)) != null) {
+			switch (field) {
+			case "group-key":
+				item.groupKey = readString(p);
+				break;
+			case "msg":
+				item.msg = readString(p);
+				break;
+			case "signatures":
+				expect(p, Event.START_ARRAY);
+				Event e;
+				while ((e = p.next()) != Event.END_ARRAY) {
+					if (e == Event.VALUE_STRING) {
+						item.signatures.add(p.getString());
+					} else {
+						skipCurrent(p, e);
+						item.signatures.add(null); // malformed, see verifyRequest
+					}
+				}
+				break;
+			default:
+				skipValue(p);
+			}
+		}
+		return item;
+	}
+
+	private static SignRequest signRequest(String[] item) throws IOException {
+		if (item == null || item[0] == null || item[1] == null)
+			throw new IOException("Sign call is missing share or msg");
+
+		// retrieve key share
+		KeyShare sh = KeyShare.fromString(item[0]);
+		if (sh == null)
+			throw new IOException("Sign call has a malformed share");
+		return new SignRequest(sh, item[1].getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static VerifyRequest verifyRequest(VerifyItem item, GroupKey gk) throws IOException {
+		if (item.msg == null)
+			throw new IOException("Verify call is missing msg");
+
+		// convert the 64b strings to sig shares
+		SigShare[] ssh = new SigShare[item.signatures.size()];
+		for (int i = 0; i < ssh.length; i++) {
+			try {
+				ssh[i] = SigShare.fromString(item.signatures.get(i));
+			} catch (Exception ex) {
+				XSPLog.warn("Detected malformed sig");
+				XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+			}
+		}
+
+		return new VerifyRequest(gk, ssh, item.msg.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// parsing helpers
+	//............................................................................
+
+	private static JsonParser parse(byte[] payload) throws IOException {
+		JsonParser p = PARSERS.createParser(new ByteArrayInputStream(payload), StandardCharsets.UTF_8);
+		expect(p, Event.START_OBJECT);
+		return p;
+	}
+
+	private static void expect(JsonParser p, Event expected) throws IOException {
+		if (!p.hasNext() || p.next() != expected)
+			throw new IOException("Malformed JSON payload, expected " + expected);
+	}
+
+	/* name of the next field of the current object, or null once the object ends */
+	private static String nextField(JsonParser p) throws IOException {
+		Event e = p.next();
+		if (e == Event.END_OBJECT)
+			return null;
+		if (e != Event.KEY_NAME)
+			throw new IOException("Malformed JSON payload, unexpected " + e);
+		return p.getString();
+	}
+
+	private static String readString(JsonParser p) throws IOException {
+		expect(p, Event.VALUE_STRING);
+		return p.getString();
+	}
+
+	private static int readInt(JsonParser p) throws IOException {
+		expect(p, Event.VALUE_NUMBER);
+		return p.getInt();
+	}
+
+	private static void skipValue(JsonParser p) {
+		skipCurrent(p, p.next());
+	}
+
+	/* skips the rest of a value whose first event was 'e' */
+	private static void skipCurrent(JsonParser p, Event e) {
+		if (e != Event.START_OBJECT && e != Event.START_ARRAY)
+			return;
+
+		int depth = 1;
+		while (depth > 0) {
+			e = p.next();
+			if (e == Event.START_OBJECT || e == Event.START_ARRAY)
+				depth++;
+			else if (e == Event.END_OBJECT || e == Event.END_ARRAY)
+				depth--;
+		}
+	}
+
+	// generation helpers
+	//............................................................................
+
+	private static ByteArrayOutputStream out() {
+		ByteArrayOutputStream out = OUT.get();
+		out.reset();
+		return out;
+	}
+
+	private static byte[] done(JsonGenerator g, ByteArrayOutputStream out) {
+		g.close();
+		return out.toByteArray();
+	}
+}
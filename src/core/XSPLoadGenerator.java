@@ -0,0 +1,417 @@
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+
+/* XSP load generator
+ *
+ * Drives a running server over its unix socket with a weighted mix of deal, sign and verify calls, from a
+ * number of connections each with one call outstanding, and reports throughput and latency percentiles.
+ *
+ * 	- closed loop: every connection sends its next call as soon as the previous one is answered
+ * 	- open loop: calls are due at a fixed overall rate whether or not earlier ones were answered
+ *
+ * A closed loop slows down with the server and so under-reports its stalls (coordinated omission). Both modes
+ * therefore print a corrected latency next to the service time: in open loop the latency counts from when a
+ * call was due rather than when it could be sent, in closed loop the histogram is corrected for the calls that
+ * a stall kept from being sent, assuming one every --expected-interval-us (the mean service time by default).
+ *
+ * usage: java core.XSPLoadGenerator [--socket /tmp/hlf-xsp.sock] [--loop closed|open] [--rate calls/s]
+ * 		[--concurrency n] [--duration s] [--warmup s] [--mix deal=0,sign=90,verify=10]
+ * 		[--key-size bits] [--k k] [--l l] [--binary] [--expected-interval-us us]
+ */
+public class XSPLoadGenerator {
+
+	public enum Loop {
+		CLOSED, OPEN
+	}
+
+	private static final CallType[] CALLS = { CallType.ThreshSigDealCall, CallType.ThreshSigSignCall,
+			CallType.ThreshSigVerifyCall };
+	private static final String[] CALL_NAMES = { "deal", "sign", "verify" };
+
+	private static final byte[] MESSAGE = ("lorem ipsum dolor sit amet, consectetur adipiscing elit, "
+			+ "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.").getBytes(StandardCharsets.UTF_8);
+
+	// options
+	String socket = "/tmp/hlf-xsp.sock";
+	Loop loop = Loop.CLOSED;
+	double rate = 100;
+	int concurrency = 8;
+	int durationS = 30;
+	int warmupS = 5;
+	int[] mix = { 0, 90, 10 };			// weights, in CALLS order
+	int keySize = 512;
+	int k = 3;
+	int l = 5;
+	boolean binary;
+	long expectedIntervalUs;
+
+	// payloads of each call type, filled by prepare()
+	private byte[][][] payloads = new byte[CALLS.length][][];
+
+	private final CallStats[] stats = new CallStats[CALLS.length];
+	private final AtomicLong sequence = new AtomicLong();	// open loop: calls scheduled so far
+	private long startedAt;
+	private long measureFrom;
+	private long endAt;
+
+	private static class CallStats {
+
+		final XSPHistogram service = new XSPHistogram();	// sent -> answered
+		final XSPHistogram response = new XSPHistogram();	// due -> answered
+		final LongAdder errors = new LongAdder();
+		final LongAdder busy = new LongAdder();
+	}
+
+	public XSPLoadGenerator() {
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new CallStats();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		XSPLoadGenerator gen = new XSPLoadGenerator();
+		try {
+			gen.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: java core.XSPLoadGenerator [--socket path] [--loop closed|open] [--rate calls/s]"
+					+ " [--concurrency n] [--duration s] [--warmup s] [--mix deal=0,sign=90,verify=10]"
+					+ " [--key-size bits] [--k k] [--l l] [--binary] [--expected-interval-us us]");
+			System.exit(1);
+		}
+
+		gen.prepare();
+		gen.run();
+		gen.report();
+	}
+
+	void parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--binary")) {
+				binary = true;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+
+			String value = args[++i];
+			switch (arg) {
+			case "--socket":
+				socket = value;
+				break;
+			case "--loop":
+				loop = Loop.valueOf(value.toUpperCase());
+				break;
+			case "--rate":
+				rate = Double.parseDouble(value);
+				break;
+			case "--concurrency":
+				concurrency = Integer.parseInt(value);
+				break;
+			case "--duration":
+				durationS = Integer.parseInt(value);
+				break;
+			case "--warmup":
+				warmupS = Integer.parseInt(value);
+				break;
+			case "--mix":
+				mix = parseMix(value);
+				break;
+			case "--key-size":
+				keySize = Integer.parseInt(value);
+				break;
+			case "--k":
+				k = Integer.parseInt(value);
+				break;
+			case "--l":
+				l = Integer.parseInt(value);
+				break;
+			case "--expected-interval-us":
+				expectedIntervalUs = Long.parseLong(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	private static int[] parseMix(String value) {
+		int[] weights = new int[CALLS.length];
+		long total = 0;
+		for (String part : value.split(",")) {
+			String[] kv = part.split("=");
+			int call = indexOfName(kv[0].trim());
+			if (call < 0 || kv.length != 2)
+				throw new IllegalArgumentException("Bad mix entry " + part);
+			weights[call] = Integer.parseInt(kv[1].trim());
+			if (weights[call] < 0)
+				throw new IllegalArgumentException("Negative mix weight " + part);
+		}
+		for (int w : weights)
+			total += w;
+		if (total == 0)
+			throw new IllegalArgumentException("Mix " + value + " has no call with a weight above 0");
+		if (total > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Mix " + value + " weights add up to more than " + Integer.MAX_VALUE);
+		return weights;
+	}
+
+	private static int indexOfName(String name) {
+		for (int i = 0; i < CALL_NAMES.length; i++) {
+			if (CALL_NAMES[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/* deals a key set and signs the test message with every share, to build the calls the run sends */
+	void prepare() throws IOException {
+		UnixDomainSocketClient clientSocket = new UnixDomainSocketClient(socket, JUDS.SOCK_STREAM);
+		try {
+			XSPSocketConnection conn = new XSPSocketConnection("Load -> Server:" + socket, clientSocket,
+					XSPSocketConnection.WireMode.FRAMED);
+
+			byte[] deal = binary ? XSPBinaryCodec.encodeDealRequest(keySize, l, k)
+					: Json.createObjectBuilder().add("key-size", keySize).add("l", l).add("k", k).build().toString()
+							.getBytes(StandardCharsets.UTF_8);
+			payloads[0] = new byte[][] { deal };
+
+			byte[] dealt = call(conn, CallType.ThreshSigDealCall, deal);
+			byte[][] sign = new byte[l][];
+			byte[][] sigs = new byte[l][];
+			byte[] groupKey;
+
+			if (binary) {
+				ByteBuffer bb = ByteBuffer.wrap(dealt);
+				groupKey = XSPBinaryCodec.getBytes(bb);
+				int count = bb.getInt();
+				for (int i = 0; i < count && i < l; i++) {
+					bb.getInt(); // id
+					sign[i] = XSPBinaryCodec.encodeSignRequest(XSPBinaryCodec.getBytes(bb), MESSAGE);
+					sigs[i] = XSPBinaryCodec.decodeSignResponse(call(conn, CallType.ThreshSigSignCall, sign[i]));
+				}
+				payloads[2] = new byte[][] { XSPBinaryCodec.encodeVerifyRequest(groupKey, sigs, MESSAGE) };
+			} else {
+				JsonObject dealJson = readJson(dealt);
+				JsonArray shares = dealJson.getJsonArray("shares");
+				String msg = new String(MESSAGE, StandardCharsets.UTF_8);
+
+				JsonArrayBuilder sigStrings = Json.createArrayBuilder();
+				for (int i = 0; i < l; i++) {
+					sign[i] = Json.createObjectBuilder().add("share", shares.getJsonObject(i).getString("share"))
+							.add("msg", msg).build().toString().getBytes(StandardCharsets.UTF_8);
+					sigStrings.add(readJson(call(conn, CallType.ThreshSigSignCall, sign[i])).getString("signature"));
+				}
+				payloads[2] = new byte[][] { Json.createObjectBuilder().add("group-key", dealJson.getString("group-key"))
+						.add("signatures", sigStrings).add("msg", msg).build().toString()
+						.getBytes(StandardCharsets.UTF_8) };
+			}
+			payloads[1] = sign;
+		} finally {
+			clientSocket.close();
+		}
+	}
+
+	void run() throws InterruptedException {
+		startedAt = System.nanoTime();
+		measureFrom = startedAt + TimeUnit.SECONDS.toNanos(warmupS);
+		endAt = measureFrom + TimeUnit.SECONDS.toNanos(durationS);
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < concurrency; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runConnection();
+				}
+			}, "xsp-load-" + i);
+			t.start();
+			workers.add(t);
+		}
+		for (Thread t : workers) {
+			t.join();
+		}
+	}
+
+	private void runConnection() {
+		Random rnd = ThreadLocalRandom.current();
+		UnixDomainSocketClient clientSocket = null;
+		XSPSocketConnection conn = null;
+		int flags = binary ? XSPFrame.FLAG_BINARY : 0;
+
+		while (true) {
+			long due;
+			if (loop == Loop.OPEN) {
+				due = startedAt + (long) (sequence.getAndIncrement() * 1e9 / rate);
+				if (due >= endAt)
+					break;
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			} else {
+				due = System.nanoTime();
+				if (due >= endAt)
+					break;
+			}
+
+			int call = pick(rnd);
+			byte[][] choices = payloads[call];
+			byte[] payload = choices[rnd.nextInt(choices.length)];
+			CallStats st = stats[call];
+
+			try {
+				if (conn == null) {
+					clientSocket = new UnixDomainSocketClient(socket, JUDS.SOCK_STREAM);
+					conn = new XSPSocketConnection("Load -> Server:" + socket, clientSocket,
+							XSPSocketConnection.WireMode.FRAMED);
+				}
+
+				long sentAt = System.nanoTime();
+				conn.send(new XSPFrame(CALLS[call], flags, payload));
+				XSPFrame resp = conn.receiveFrame();
+				long answeredAt = System.nanoTime();
+				if (resp == null)
+					throw new IOException("Server closed the connection");
+
+				if (due < measureFrom)
+					continue;
+				if (resp.getCallType() == CallType.XSPBusyRet) {
+					st.busy.increment();
+					continue;
+				}
+				st.service.record(answeredAt - sentAt);
+				st.response.record(answeredAt - due);
+
+			} catch (IOException e) {
+				if (due >= measureFrom)
+					st.errors.increment();
+				if (clientSocket != null)
+					clientSocket.close();
+				clientSocket = null;
+				conn = null;
+			}
+		}
+
+		if (clientSocket != null)
+			clientSocket.close();
+	}
+
+	private int pick(Random rnd) {
+		int total = 0;
+		for (int w : mix) {
+			total += w;
+		}
+
+		int r = rnd.nextInt(total);
+		for (int i = 0; i < mix.length; i++) {
+			r -= mix[i];
+			if (r < 0)
+				return i;
+		}
+		return mix.length - 1;
+	}
+
+	void report() {
+		System.out.println("XSP load: " + loop.name().toLowerCase() + " loop"
+				+ (loop == Loop.OPEN ? " at " + rate + " calls/s" : "") + ", " + concurrency + " connections, "
+				+ durationS + " s after " + warmupS + " s warm-up, " + keySize + " bit keys, k=" + k + " l=" + l
+				+ ", " + (binary ? "binary" : "json"));
+
+		CallStats all = new CallStats();
+		for (CallStats st : stats) {
+			all.service.add(st.service);
+			all.response.add(st.response);
+			all.errors.add(st.errors.sum());
+			all.busy.add(st.busy.sum());
+		}
+
+		long expected = expectedIntervalUs > 0 ? TimeUnit.MICROSECONDS.toNanos(expectedIntervalUs)
+				: (long) all.service.getMean();
+
+		System.out.println();
+		System.out.println("service time (sent -> answered), ms");
+		printHeader();
+		for (int i = 0; i < CALLS.length; i++) {
+			if (mix[i] > 0)
+				printRow(CALL_NAMES[i], stats[i], stats[i].service);
+		}
+		printRow("all", all, all.service);
+
+		System.out.println();
+		if (loop == Loop.OPEN) {
+			System.out.println("latency corrected for coordinated omission (due -> answered), ms");
+		} else {
+			System.out.println("latency corrected for coordinated omission (expected interval "
+					+ String.format("%.3f", expected / 1e6) + " ms), ms");
+		}
+		printHeader();
+		for (int i = 0; i < CALLS.length; i++) {
+			if (mix[i] > 0)
+				printRow(CALL_NAMES[i], stats[i], corrected(stats[i], expected));
+		}
+		printRow("all", all, corrected(all, expected));
+	}
+
+	private XSPHistogram corrected(CallStats st, long expected) {
+		return loop == Loop.OPEN ? st.response : st.service.copyCorrectedForCoordinatedOmission(expected);
+	}
+
+	private static void printHeader() {
+		System.out.println(String.format("%-8s %9s %7s %7s %10s %9s %9s %9s %9s %9s", "call", "count", "errors",
+				"busy", "calls/s", "p50", "p90", "p99", "p999", "max"));
+	}
+
+	/* counts and throughput are those of the answered calls, percentiles come from 'h' */
+	private void printRow(String name, CallStats st, XSPHistogram h) {
+		long count = st.service.getCount();
+		System.out.println(String.format("%-8s %9d %7d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f", name, count,
+				st.errors.sum(), st.busy.sum(), count / (double) durationS, h.getValueAtQuantile(0.50) / 1e6,
+				h.getValueAtQuantile(0.90) / 1e6, h.getValueAtQuantile(0.99) / 1e6, h.getValueAtQuantile(0.999) / 1e6,
+				h.getMax() / 1e6));
+	}
+
+	private byte[] call(XSPSocketConnection conn, CallType call, byte[] payload) throws IOException {
+		conn.send(new XSPFrame(call, binary ? XSPFrame.FLAG_BINARY : 0, payload));
+
+		XSPFrame resp = conn.receiveFrame();
+		if (resp == null || resp.getPayload() == null)
+			throw new IOException("Server closed the connection without a response to " + call.getCallName());
+		if (resp.getCallType() == CallType.XSPBusyRet)
+			throw new IOException("Server busy while preparing the load");
+		return resp.getPayload();
+	}
+
+	private static JsonObject readJson(byte[] payload) throws IOException {
+		JsonReader reader = Json.createReader(
+				new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+		try {
+			return reader.readObject();
+		} finally {
+			reader.close();
+		}
+	}
+}
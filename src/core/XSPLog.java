@@ -0,0 +1,237 @@
+package core;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/* XSP asynchronous log
+ *
+ * Request threads never touch the console: they claim a slot in a fixed ring of preallocated entries
+ * (lock-free, a CAS on the tail), fill it in and move on. A single background writer drains the ring
+ * and does the formatting and printing. When the writer falls behind and the ring is full, messages are
+ * dropped and counted instead of stalling calls.
+ *
+ * Configuration (environment):
+ * 	- XSP_LOG_LEVEL		DEBUG, INFO (default), WARN, ERROR or OFF
+ * 	- XSP_LOG_SAMPLE	log the per-call lines of 1 in N calls (default 1, every call)
+ * 	- XSP_LOG_RING_SIZE	ring entries, rounded up to a power of two (default 8192)
+ *
+ * Call payloads are only ever logged at DEBUG, and then with key share values redacted.
+ */
+public final class XSPLog {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	public static Level LEVEL = Level.INFO;
+	public static int SAMPLE = 1;
+	public static int RING_SIZE = 8192;
+
+	private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final Pattern SHARE_VALUE = Pattern.compile("(\"share\"\\s*:\\s*\")[^\"]*\"");
+
+	private static final Entry[] ring;
+	private static final int mask;
+	private static final AtomicLong tail = new AtomicLong();	// next slot to claim
+	private static long head;					// next slot to write out, writer thread only
+	private static volatile long written;				// head, as seen by flush
+
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong sampled = new AtomicLong();
+	private static final Thread writer;
+
+	static {
+		String levelEnvVar = System.getenv("XSP_LOG_LEVEL");
+		if (levelEnvVar != null && !levelEnvVar.isEmpty()) {
+			LEVEL = Level.valueOf(levelEnvVar.toUpperCase());
+		}
+
+		String sampleEnvVar = System.getenv("XSP_LOG_SAMPLE");
+		if (sampleEnvVar != null && !sampleEnvVar.isEmpty()) {
+			SAMPLE = Math.max(1, Integer.parseInt(sampleEnvVar));
+		}
+
+		String ringSizeEnvVar = System.getenv("XSP_LOG_RING_SIZE");
+		if (ringSizeEnvVar != null && !ringSizeEnvVar.isEmpty()) {
+			RING_SIZE = Integer.parseInt(ringSizeEnvVar);
+		}
+
+		int size = Integer.highestOneBit(Math.max(2, RING_SIZE - 1)) << 1;
+		ring = new Entry[size];
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Entry(i);
+		}
+		mask = size - 1;
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainForever();
+			}
+		}, "xsp-logger");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "xsp-logger-flush"));
+	}
+
+	private XSPLog() {
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+	}
+
+	/**
+	 * Decides whether the per-call lines of a call are logged, honouring XSP_LOG_SAMPLE. Ask once per
+	 * call and reuse the answer, so that a sampled call logs all of its lines.
+	 */
+	public static boolean sampleCall() {
+		if (!isEnabled(Level.INFO))
+			return false;
+		return SAMPLE <= 1 || sampled.getAndIncrement() % SAMPLE == 0;
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	public static void error(String message, Throwable t) {
+		log(Level.ERROR, message, t);
+	}
+
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Describes a call payload for the log: its size, plus its text at DEBUG level for JSON payloads,
+	 * with the values of "share" fields redacted.
+	 */
+	static String payload(XSPFrame frame) {
+		byte[] payload = frame.getPayload();
+		if (payload == null)
+			return "none";
+		if (frame.isBinary() || !isEnabled(Level.DEBUG))
+			return "<" + payload.length + " bytes" + (frame.isBinary() ? " binary>" : ">");
+
+		String text = new String(payload, StandardCharsets.UTF_8);
+		return SHARE_VALUE.matcher(text).replaceAll("$1<redacted>\"");
+	}
+
+	/* " trace <id>" for calls that carry a trace id, nothing otherwise; for the per-call lines */
+	static String trace(XSPFrame frame) {
+		return frame.hasTraceId() ? " trace " + frame.getTraceIdString() : "";
+	}
+
+	/* waits (briefly) for the writer to catch up with everything logged so far */
+	public static void flush() {
+		long target = tail.get();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		while (written < target && System.nanoTime() < deadline) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+	}
+
+	private static void log(Level level, String message, Throwable t) {
+		if (!isEnabled(level))
+			return;
+
+		long pos = tail.get();
+		Entry e;
+		while (true) {
+			e = ring[(int) (pos & mask)];
+			long dif = e.seq - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+				pos = tail.get();
+			} else if (dif < 0) {
+				dropped.incrementAndGet(); // full, the writer is behind
+				return;
+			} else {
+				pos = tail.get(); // another thread claimed this slot
+			}
+		}
+
+		e.time = System.currentTimeMillis();
+		e.level = level;
+		e.message = message;
+		e.thrown = t;
+		e.seq = pos + 1; // publishes the entry to the writer
+
+		if (level.compareTo(Level.WARN) >= 0)
+			LockSupport.unpark(writer);
+	}
+
+	private static void drainForever() {
+		SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss.SSS");
+		long reportedDrops = 0;
+
+		while (true) {
+			boolean wrote = false;
+
+			Entry e;
+			while ((e = ring[(int) (head & mask)]).seq == head + 1) {
+				PrintStream out = e.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+				out.println(fmt.format(new Date(e.time)) + " " + e.level + " " + e.message);
+				if (e.thrown != null)
+					e.thrown.printStackTrace(out);
+
+				e.message = null;
+				e.thrown = null;
+				e.seq = head + mask + 1; // free for the producer that wraps around to it
+				head++;
+				written = head;
+				wrote = true;
+			}
+
+			long drops = dropped.get();
+			if (drops != reportedDrops) {
+				System.err.println(fmt.format(new Date()) + " WARN " + (drops - reportedDrops)
+						+ " log messages dropped, ring full");
+				reportedDrops = drops;
+			}
+
+			if (wrote) {
+				System.out.flush();
+				System.err.flush();
+			} else {
+				LockSupport.parkNanos(WRITER_PARK_NANOS);
+			}
+		}
+	}
+
+	private static final class Entry {
+
+		volatile long seq;		// == position + 1 once filled, == position while free
+		long time;
+		Level level;
+		String message;
+		Throwable thrown;
+
+		Entry(long seq) {
+			this.seq = seq;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+
+/* XSP traffic replay
+ *
+ * Plays a capture recorded with XSP_CAPTURE_FILE (see XSPCapture) against a running server: every captured
+ * connection gets a connection of its own, and every call is sent when it arrived in the capture, scaled by
+ * --speed (2 replays twice as fast, 0 sends every call as soon as possible). Calls are sent on schedule whether
+ * or not earlier ones were answered, so latencies count from when a call was due and stalls are not hidden.
+ *
+ * Sign calls carry the substituted shares of the capture, so their signatures differ from the original ones
+ * but cost the same to compute. Calls whose payload was dropped from the capture are skipped.
+ *
+ * usage: java core.XSPReplay <capture-file> [--socket /tmp/hlf-xsp.sock] [--speed 1.0]
+ */
+public class XSPReplay {
+
+	// options
+	String capture;
+	String socket = "/tmp/hlf-xsp.sock";
+	double speed = 1.0;
+
+	private final Map<Integer, List<XSPCapture.Record>> connections = new LinkedHashMap<Integer, List<XSPCapture.Record>>();
+	private final Map<CallType, CallStats> stats = new ConcurrentHashMap<CallType, CallStats>();
+	private final LongAdder skipped = new LongAdder();
+	private final AtomicLong maxLag = new AtomicLong();	// how far sending fell behind the schedule
+	private long captured;
+	private long spanNanos;
+	private long startedAt;
+	private long endedAt;
+
+	private static class CallStats {
+
+		final XSPHistogram latency = new XSPHistogram();	// due -> answered
+		final LongAdder errors = new LongAdder();
+		final LongAdder busy = new LongAdder();
+	}
+
+	/* a call sent and waiting for its reply */
+	private static class Pending {
+
+		final CallType callType;
+		final long due;
+
+		Pending(CallType callType, long due) {
+			this.callType = callType;
+			this.due = due;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		XSPReplay replay = new XSPReplay();
+		try {
+			replay.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: java core.XSPReplay <capture-file> [--socket path] [--speed 1.0]");
+			System.exit(1);
+		}
+
+		replay.load();
+		replay.run();
+		replay.report();
+	}
+
+	void parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				capture = arg;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+
+			String value = args[++i];
+			switch (arg) {
+			case "--socket":
+				socket = value;
+				break;
+			case "--speed":
+				speed = Double.parseDouble(value);
+				if (speed < 0)
+					throw new IllegalArgumentException("Bad speed " + value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if (capture == null)
+			throw new IllegalArgumentException("Missing capture file");
+	}
+
+	/* reads the whole capture, grouping the calls by the connection they came in on */
+	void load() throws IOException {
+		XSPCapture.Reader reader = new XSPCapture.Reader(capture);
+		try {
+			XSPCapture.Record r;
+			while ((r = reader.next()) != null) {
+				captured++;
+				spanNanos = Math.max(spanNanos, r.arrivalNanos);
+				if (r.payload == null) {
+					skipped.increment();
+					continue;
+				}
+
+				List<XSPCapture.Record> calls = connections.get(r.connection);
+				if (calls == null) {
+					calls = new ArrayList<XSPCapture.Record>();
+					connections.put(r.connection, calls);
+				}
+				calls.add(r);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	void run() throws InterruptedException {
+		// calls are due relative to the first one of the capture
+		long first = Long.MAX_VALUE;
+		for (List<XSPCapture.Record> calls : connections.values()) {
+			first = Math.min(first, calls.get(0).arrivalNanos);
+		}
+		final long origin = first;
+
+		startedAt = System.nanoTime();
+		List<Thread> senders = new ArrayList<Thread>();
+		for (final Map.Entry<Integer, List<XSPCapture.Record>> conn : connections.entrySet()) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					replayConnection(conn.getValue(), origin);
+				}
+			}, "xsp-replay-" + conn.getKey());
+			t.start();
+			senders.add(t);
+		}
+		for (Thread t : senders) {
+			t.join();
+		}
+		endedAt = System.nanoTime();
+	}
+
+	private long dueAt(XSPCapture.Record r, long origin) {
+		return speed == 0 ? startedAt : startedAt + (long) ((r.arrivalNanos - origin) / speed);
+	}
+
+	private void replayConnection(List<XSPCapture.Record> calls, long origin) {
+		long wait;
+		while ((wait = dueAt(calls.get(0), origin) - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait); // opened along with its first call
+		}
+
+		UnixDomainSocketClient clientSocket;
+		final XSPSocketConnection conn;
+		try {
+			clientSocket = new UnixDomainSocketClient(socket, JUDS.SOCK_STREAM);
+			conn = new XSPSocketConnection("Replay -> Server:" + socket, clientSocket,
+					XSPSocketConnection.WireMode.FRAMED);
+		} catch (IOException e) {
+			for (XSPCapture.Record r : calls) {
+				stats(r.callType).errors.increment();
+			}
+			return;
+		}
+
+		// replies of multiplexed calls come back by request id, the others in the order they were sent
+		final Map<Integer, Pending> multiplexed = new ConcurrentHashMap<Integer, Pending>();
+		final ConcurrentLinkedQueue<Pending> ordered = new ConcurrentLinkedQueue<Pending>();
+		final int expected = calls.size();
+
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveReplies(conn, multiplexed, ordered, expected);
+			}
+		}, Thread.currentThread().getName() + "-replies");
+		receiver.start();
+
+		int sent = 0;
+		try {
+			for (XSPCapture.Record r : calls) {
+				long due = dueAt(r, origin);
+				while ((wait = due - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				lagged(System.nanoTime() - due);
+
+				Pending p = new Pending(r.callType, due);
+				XSPFrame frame = r.toFrame();
+				if (frame.hasRequestId())
+					multiplexed.put(frame.getRequestId(), p);
+				else
+					ordered.add(p);
+				conn.send(frame);
+				sent++;
+			}
+			receiver.join();
+		} catch (IOException e) {
+			// the receiver counts what was sent and not answered once the socket is gone
+			for (XSPCapture.Record r : calls.subList(sent + 1, calls.size())) {
+				stats(r.callType).errors.increment();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			clientSocket.close();
+			// closing shuts the socket down, so the receiver ends and has counted its errors before report()
+			joinUninterruptibly(receiver);
+		}
+	}
+
+	private static void joinUninterruptibly(Thread t) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				t.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void receiveReplies(XSPSocketConnection conn, Map<Integer, Pending> multiplexed,
+			ConcurrentLinkedQueue<Pending> ordered, int expected) {
+
+		int answered = 0;
+		try {
+			while (answered < expected) {
+				XSPFrame resp = conn.receiveFrame();
+				long answeredAt = System.nanoTime();
+				if (resp == null)
+					break;
+
+				Pending p = resp.hasRequestId() ? multiplexed.remove(resp.getRequestId()) : ordered.poll();
+				if (p == null)
+					continue; // not a reply to anything sent
+				answered++;
+
+				CallStats st = stats(p.callType);
+				if (resp.getCallType() == CallType.XSPBusyRet)
+					st.busy.increment();
+				else
+					st.latency.record(answeredAt - p.due);
+			}
+		} catch (IOException e) {
+			// connection broken, the calls still pending count as errors
+		}
+
+		for (Pending p : multiplexed.values()) {
+			stats(p.callType).errors.increment();
+		}
+		Pending p;
+		while ((p = ordered.poll()) != null) {
+			stats(p.callType).errors.increment();
+		}
+	}
+
+	private CallStats stats(CallType t) {
+		CallStats st = stats.get(t);
+		if (st == null) {
+			stats.putIfAbsent(t, new CallStats());
+			st = stats.get(t);
+		}
+		return st;
+	}
+
+	private void lagged(long nanos) {
+		long max;
+		while (nanos > (max = maxLag.get()) && !maxLag.compareAndSet(max, nanos)) {
+		}
+	}
+
+	void report() {
+		double seconds = (endedAt - startedAt) / 1e9;
+		System.out.println("XSP replay of " + capture + ": " + captured + " calls on " + connections.size()
+				+ " connections over " + String.format("%.3f", spanNanos / 1e9) + " s captured, "
+				+ (speed == 0 ? "as fast as possible" : "at " + speed + "x speed") + ", " + skipped.sum()
+				+ " skipped (payload dropped)");
+		System.out.println("replayed in " + String.format("%.3f", seconds) + " s, sending at most "
+				+ String.format("%.3f", maxLag.get() / 1e6) + " ms behind schedule");
+
+		System.out.println();
+		System.out.println("latency (due -> answered), ms");
+		System.out.println(String.format("%-24s %9s %7s %7s %10s %9s %9s %9s %9s %9s", "call", "count", "errors",
+				"busy", "calls/s", "p50", "p90", "p99", "p999", "max"));
+
+		CallStats all = new CallStats();
+		for (CallType t : CallType.values()) {
+			CallStats st = stats.get(t);
+			if (st == null)
+				continue;
+			printRow(t.getCallName(), st, seconds);
+			all.latency.add(st.latency);
+			all.errors.add(st.errors.sum());
+			all.busy.add(st.busy.sum());
+		}
+		printRow("all", all, seconds);
+	}
+
+	private static void printRow(String name, CallStats st, double seconds) {
+		XSPHistogram h = st.latency;
+		long count = h.getCount();
+		System.out.println(String.format("%-24s %9d %7d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f", name, count,
+				st.errors.sum(), st.busy.sum(), count / seconds, h.getValueAtQuantile(0.50) / 1e6,
+				h.getValueAtQuantile(0.90) / 1e6, h.getValueAtQuantile(0.99) / 1e6, h.getValueAtQuantile(0.999) / 1e6,
+				h.getMax() / 1e6));
+	}
+}
@@ -1,15 +1,22 @@
 package core;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
@@ -18,6 +25,7 @@ import com.etsy.net.UnixDomainSocket;
 import com.etsy.net.UnixDomainSocketClient;
 import com.etsy.net.UnixDomainSocketServer;
 
+import threshsig.CostReport;
 import threshsig.Dealer;
 import threshsig.GroupKey;
 import threshsig.KeyShare;
@@ -35,193 +43,608 @@ import threshsig.ThresholdSigException;
 */
 public class XSPServer {
 
+	public enum ServerMode {
+		POOL,		// THREAD_POOL_SIZE juds threads, each accepting and serving one connection at a time
+		NIO,		// one selector thread on JDK unix domain channels, calls run on THREAD_POOL_SIZE workers
+		VIRTUAL		// one (virtual where available) thread per connection, calls run on CRYPTO_THREADS workers
+	}
+
+	public static ServerMode SERVER_MODE = ServerMode.POOL;
+	public static int BACKLOG = 64;
 	public static int THREAD_POOL_SIZE = 8;
-	public static int MTU = 4096;
+	public static int CRYPTO_THREADS = Runtime.getRuntime().availableProcessors();
+	public static int QUEUE_DEPTH = 64;					// pending connections (pool) or calls (nio, virtual)
+	public static int REJECT_READ_TIMEOUT_MS = 100;		// how long a rejected client gets to send its call
+	public static int REJECT_THREADS = 2;				// threads answering rejected clients (pool)
+	public static int REJECT_QUEUE_DEPTH = 16;			// rejected clients waiting for an answer, then closed unanswered
+	public static int MTU = 4096;					// legacy mode single read size
+	public static int MAX_FRAME_SIZE = 16 * 1024 * 1024;	// framed mode payload limit
+	public static boolean KEEP_ALIVE = true;			// serve many framed calls per connection
+	public static int IDLE_TIMEOUT_MS = 30000;			// close kept-alive connections idle for this long
+	public static int MAX_IN_FLIGHT = 32;				// multiplexed calls running at once per connection
+	public static boolean SHARE_PROOFS = false;			// deal keys with verifiers and sign shares with proofs
+	public static int SEARCH_PARALLELISM = 0;			// batch pool threads one combination search may use, 0 for all
 
 	private static String socketFileName;
 	private static int socketType;
-	private static int errors;
+	private static AtomicInteger errors = new AtomicInteger();
+	private static XSPWorkQueue<?> workQueue;
+	private static ForkJoinPool batchPool;			// runs the items of batch calls and combination searches side by side
+	private static ExecutorService muxPool;			// runs multiplexed calls of pool mode connections
 
 	public XSPServer(String pSocketFileName, int pSocketType) throws IOException {
 		socketFileName = pSocketFileName;
 		socketType = pSocketType;
-		errors = 0;
+		errors.set(0);
+		String modeEnvVar = System.getenv("XSP_SERVER_MODE");
+		if (modeEnvVar != null && !modeEnvVar.isEmpty()) {
+			SERVER_MODE = ServerMode.valueOf(modeEnvVar.toUpperCase());
+		}
+
+		String backlogEnvVar = System.getenv("XSP_BACKLOG");
+		if (backlogEnvVar != null && !backlogEnvVar.isEmpty()) {
+			BACKLOG = Integer.parseInt(backlogEnvVar);
+		}
+
 		String threadszEnvVar = System.getenv("XSP_THREAD_POOL_SIZE");
 		if (threadszEnvVar != null && !threadszEnvVar.isEmpty()) {
 			THREAD_POOL_SIZE = Integer.parseInt(threadszEnvVar);
 		}
 		
+		String cryptoThreadsEnvVar = System.getenv("XSP_CRYPTO_THREADS");
+		if (cryptoThreadsEnvVar != null && !cryptoThreadsEnvVar.isEmpty()) {
+			CRYPTO_THREADS = Integer.parseInt(cryptoThreadsEnvVar);
+		}
+
+		String queueDepthEnvVar = System.getenv("XSP_QUEUE_DEPTH");
+		if (queueDepthEnvVar != null && !queueDepthEnvVar.isEmpty()) {
+			QUEUE_DEPTH = Integer.parseInt(queueDepthEnvVar);
+		}
+
+		String rejectThreadsEnvVar = System.getenv("XSP_REJECT_THREADS");
+		if (rejectThreadsEnvVar != null && !rejectThreadsEnvVar.isEmpty()) {
+			REJECT_THREADS = Integer.parseInt(rejectThreadsEnvVar);
+		}
+
+		String rejectQueueDepthEnvVar = System.getenv("XSP_REJECT_QUEUE_DEPTH");
+		if (rejectQueueDepthEnvVar != null && !rejectQueueDepthEnvVar.isEmpty()) {
+			REJECT_QUEUE_DEPTH = Integer.parseInt(rejectQueueDepthEnvVar);
+		}
+
 		String mtuEnvVar = System.getenv("XSP_MTU");
 		if (mtuEnvVar != null && !mtuEnvVar.isEmpty()) {
 			MTU = Integer.parseInt(mtuEnvVar);
 		}
+
+		String maxFrameEnvVar = System.getenv("XSP_MAX_FRAME_SIZE");
+		if (maxFrameEnvVar != null && !maxFrameEnvVar.isEmpty()) {
+			MAX_FRAME_SIZE = Integer.parseInt(maxFrameEnvVar);
+		}
+
+		String keepAliveEnvVar = System.getenv("XSP_KEEP_ALIVE");
+		if (keepAliveEnvVar != null && !keepAliveEnvVar.isEmpty()) {
+			KEEP_ALIVE = Boolean.parseBoolean(keepAliveEnvVar);
+		}
+
+		String idleTimeoutEnvVar = System.getenv("XSP_IDLE_TIMEOUT_MS");
+		if (idleTimeoutEnvVar != null && !idleTimeoutEnvVar.isEmpty()) {
+			IDLE_TIMEOUT_MS = Integer.parseInt(idleTimeoutEnvVar);
+		}
+
+		String maxInFlightEnvVar = System.getenv("XSP_MAX_IN_FLIGHT");
+		if (maxInFlightEnvVar != null && !maxInFlightEnvVar.isEmpty()) {
+			MAX_IN_FLIGHT = Integer.parseInt(maxInFlightEnvVar);
+		}
+
+		String searchParallelismEnvVar = System.getenv("XSP_SEARCH_PARALLELISM");
+		if (searchParallelismEnvVar != null && !searchParallelismEnvVar.isEmpty()) {
+			SEARCH_PARALLELISM = Integer.parseInt(searchParallelismEnvVar);
+		}
+
+		String shareProofsEnvVar = System.getenv("XSP_SHARE_PROOFS");
+		if (shareProofsEnvVar != null && !shareProofsEnvVar.isEmpty()) {
+			SHARE_PROOFS = Boolean.parseBoolean(shareProofsEnvVar);
+		}
+
+		batchPool = new ForkJoinPool(CRYPTO_THREADS);
+		XSPCapture.isEnabled(); // opens the capture file (XSP_CAPTURE_FILE) before the first call comes in
 	}
 
 	public UnixDomainSocketServer initServer() throws IOException {
-		return new UnixDomainSocketServer(socketFileName, socketType, 3);
+		return new UnixDomainSocketServer(socketFileName, socketType, BACKLOG);
+	}
+
+	public XSPChannelServer initChannelServer() throws IOException {
+		XSPWorkQueue<Runnable> calls = new XSPWorkQueue<Runnable>(QUEUE_DEPTH);
+		workQueue = calls;
+
+		XSPChannelServer server = new XSPChannelServer(socketFileName, BACKLOG,
+				calls.newExecutor(THREAD_POOL_SIZE, "thread-xspp-"));
+		server.bind();
+		return server;
+	}
+
+	public XSPThreadPerConnectionServer initThreadPerConnectionServer() throws IOException {
+		XSPWorkQueue<Runnable> calls = new XSPWorkQueue<Runnable>(QUEUE_DEPTH);
+		workQueue = calls;
+
+		XSPThreadPerConnectionServer server = new XSPThreadPerConnectionServer(socketFileName, BACKLOG,
+				calls.newExecutor(CRYPTO_THREADS, "thread-xspw-"));
+		server.bind();
+		return server;
 	}
 
 	public int getErrors() {
-		return errors;
+		return errors.get();
 	}
 
-	private static class XSPAttendTask implements Runnable {
+	/**
+	 * @return the admission queue of the running server mode, for depth and wait time figures
+	 */
+	public static XSPWorkQueue<?> getWorkQueue() {
+		return workQueue;
+	}
+
+	/* typed response telling the client to back off, retry or shed load */
+	static XSPFrame busyResponse() throws IOException {
+		XSPStats.error(XSPStats.ErrorClass.BUSY);
+		XSPWorkQueue<?> q = workQueue;
+		JsonObject busy = Json.createObjectBuilder().add("busy", true).add("queue-depth", q.getDepth())
+				.add("queue-capacity", q.getCapacity()).add("queue-wait-avg-ms", q.getAvgWaitMillis())
+				.add("queue-wait-max-ms", q.getMaxWaitMillis()).add("rejected", q.getRejected()).build();
+
+		return new XSPFrame(CallType.XSPBusyRet, busy.toString().getBytes("UTF-8"));
+	}
+
+	private static class PendingConnection {
+
+		UnixDomainSocket socket;
+		long enqueuedAt = System.nanoTime();
+
+		PendingConnection(UnixDomainSocket socket) {
+			this.socket = socket;
+		}
+	}
+
+	/*
+	 * Single juds acceptor of the pool mode. Accepted connections wait in the work queue for a free attend
+	 * thread; when the queue is full the client is told it is busy and disconnected. Telling it means waiting
+	 * for its call, so that is left to the 'rejects' executor and the acceptor goes straight back to accept;
+	 * when the executor is full as well the client is disconnected without a reply.
+	 */
+	private static class XSPAcceptTask implements Runnable {
 
 		UnixDomainSocketServer serverSocket;
-		String threadName;
+		XSPWorkQueue<PendingConnection> pending;
+		Executor rejects;
 
-		public XSPAttendTask(UnixDomainSocketServer serverSocket, String threadName) {
+		public XSPAcceptTask(UnixDomainSocketServer serverSocket, XSPWorkQueue<PendingConnection> pending,
+				Executor rejects) {
 			this.serverSocket = serverSocket;
+			this.pending = pending;
+			this.rejects = rejects;
+		}
+
+		@Override
+		public void run() {
+
+			while (true) {
+				try {
+					UnixDomainSocket socket = serverSocket.accept();
+					if (!pending.offer(new PendingConnection(socket)))
+						reject(socket);
+
+				} catch (Exception e) {
+					logError(new Object[] { "Accept failure" }, e);
+				}
+			}
+		}
+
+		private void reject(final UnixDomainSocket socket) {
+			try {
+				rejects.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendBusy(socket);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				XSPStats.error(XSPStats.ErrorClass.BUSY);
+				socket.close();
+			}
+		}
+
+		private static void sendBusy(UnixDomainSocket socket) {
+			try {
+				// the busy reply has to match the client's wire mode, so give it a moment to send its call
+				socket.setSoTimeout(REJECT_READ_TIMEOUT_MS);
+				XSPSocketConnection conn = new XSPSocketConnection("Server -> Client:" + socketFileName, socket);
+				XSPFrame recvFrame = conn.receiveFrame();
+				if (recvFrame != null) {
+					conn.send(busyResponse().asReplyTo(recvFrame));
+				}
+			} catch (IOException e) {
+				// client gave up or never sent anything
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	private static class XSPAttendTask implements Runnable {
+
+		XSPWorkQueue<PendingConnection> pending;
+		String threadName;
+
+		public XSPAttendTask(XSPWorkQueue<PendingConnection> pending, String threadName) {
+			this.pending = pending;
 			this.threadName = threadName;
 		}
 
 		@Override
 		public void run() {
 
-			int ncalls = 0;
+			int nconns = 0;
 			while (true) {
 
+				UnixDomainSocket socket = null;
 				try {
-					UnixDomainSocket socket = null;
-					synchronized (this) {
-						socket = serverSocket.accept(); // we only need to accept once
-					}
-					XSPSocketConnection conn = new XSPSocketConnection("Server -> Client:" + socketFileName, socket);
+					PendingConnection next = pending.take();
+					pending.recordWait(next.enqueuedAt);
+					socket = next.socket;
 
-					byte[] recv = new byte[MTU];
-					int recvNr = conn.receive(recv);
+					nconns++;
+					if (KEEP_ALIVE && IDLE_TIMEOUT_MS > 0)
+						socket.setSoTimeout(IDLE_TIMEOUT_MS);
 
-					if (recvNr < 0)
-						break;
+					serveConnection(new XSPSocketConnection("Server -> Client:" + socketFileName, socket),
+							threadName, nconns, null);
 
-					BufferedReader br = new BufferedReader(
-							new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					logError(null, new Exception("Unexpected: Thread exploded during attend task!", e));
+				} finally {
+					if (socket != null)
+						socket.close();
+				}
+			}
+		}
+	}
 
-					String recvCall = br.readLine(); // get the call name
-					String payload = br.readLine(); // get the payload
+	/*
+	 * Serves calls on an accepted socket. Legacy calls cannot be delimited within a stream, so those
+	 * connections get exactly one call. Framed connections are kept alive until the client closes them
+	 * or they stay idle for IDLE_TIMEOUT_MS. Calls run on 'crypto' when given, otherwise on the calling thread.
+	 *
+	 * Calls with a request id are not waited for: they run concurrently (on 'crypto', or the pool mode's
+	 * multiplexing pool) and are answered as they complete, up to MAX_IN_FLIGHT of them per connection.
+	 */
+	static void serveConnection(XSPSocketConnection conn, String threadName, int nconn, ExecutorService crypto)
+			throws IOException {
+
+		XSPStats.connectionOpened();
+		try {
+			while (true) {
 
-					if (recvCall == null || recvCall.isEmpty() || CallType.parseCall(recvCall) == CallType.NoOp) {
-						logError(null, new Exception("Unexpected: Call was empty!"));
+				XSPFrame recvFrame;
+				try {
+					conn.awaitInFlightBelow(MAX_IN_FLIGHT);
+					recvFrame = conn.receiveFrame();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (IOException e) {
+					// an expired receive timeout surfaces as a failed read, which is no reason to drop
+					// a client still waiting on multiplexed calls
+					if (conn.getInFlight() > 0) {
+						awaitAllAnswered(conn);
 						continue;
 					}
+					XSPLog.info(threadName + ": Dropping connection #" + nconn + " (idle or broken: " + e + ")");
+					if (conn.getIdleSince() == Long.MAX_VALUE)
+						XSPStats.error(XSPStats.ErrorClass.IO); // broke off in the middle of a call
+					break;
+				}
 
-					ncalls++;
-					System.out.println(this.threadName + ": Received call #" + ncalls + " callName: " + recvCall
-							+ " payload: " + payload);
+				if (recvFrame == null) {
+					awaitAllAnswered(conn); // client hung up, possibly only its sending side
+					break;
+				}
+				XSPCapture.record(recvFrame, conn.getId());
 
-					JsonReader jread = Json.createReader(new StringReader(payload));
-					JsonObject recvJson = jread.readObject();
-					jread.close();
+				boolean logged = XSPLog.sampleCall();
+				if (logged)
+					XSPLog.info(threadName + ": Received call #" + conn.getCallCount() + " on connection #" + nconn
+							+ " callName: " + recvFrame.getCallType().getCallName() + " (" + conn.getMode()
+							+ ")" + XSPLog.trace(recvFrame) + " payload: " + XSPLog.payload(recvFrame));
 
-					CallType respCall = null;
-					JsonObject respJson = null;
-					String message = null;
+				if (recvFrame.hasRequestId()) {
+					attendCallAsync(conn, recvFrame, crypto != null ? crypto : muxPool, threadName, nconn, logged);
+					continue;
+				}
 
-					switch (CallType.parseCall(recvCall)) {
+				if (!attendCall(conn, recvFrame, crypto, threadName, nconn)) {
+					awaitAllAnswered(conn);
+					break; // nothing or an error was sent back, so the client cannot expect more from this connection
+				}
 
-					case ThreshSigDealCall:
-						int keySize = recvJson.getInt("key-size");
-						int l = recvJson.getInt("l");
-						int k = recvJson.getInt("k");
+				if (logged)
+					XSPLog.info(threadName + ": Returned call #" + conn.getCallCount() + " on connection #" + nconn
+							+ XSPLog.trace(recvFrame));
 
-						// call deal fn and set return
-						respCall = CallType.ThreshSigDealRet;
-						respJson = genCryptoMaterial_ThreshSig(keySize, l, k);
-						break;
+				if (!KEEP_ALIVE || conn.getMode() == XSPSocketConnection.WireMode.LEGACY)
+					break;
+			}
+		} finally {
+			XSPStats.connectionClosed();
+			if (conn.getCallCount() > 1)
+				XSPLog.info(threadName + ": Closing connection #" + nconn + " after " + conn.getCallCount() + " calls");
+		}
+	}
 
-					case ThreshSigSignCall:
+	/* returns false if the connection has to be closed after this call: nothing was sent back, or an error */
+	private static boolean attendCall(XSPSocketConnection conn, final XSPFrame recvFrame, ExecutorService crypto,
+			String threadName, int nconn) throws IOException {
 
-						String share = recvJson.getString("share");
-						message = recvJson.getString("msg");
+		XSPFrame respFrame;
+		try {
+			if (crypto == null) {
+				respFrame = dispatch(recvFrame);
+			} else {
+				try {
+					respFrame = crypto.submit(new Callable<XSPFrame>() {
+						@Override
+						public XSPFrame call() throws IOException {
+							return dispatch(recvFrame);
+						}
+					}).get();
+				} catch (RejectedExecutionException e) {
+					respFrame = busyResponse().asReplyTo(recvFrame);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a crypto worker");
+				} catch (ExecutionException e) {
+					throw new IOException("Call failed on a crypto worker", e.getCause());
+				}
+			}
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			if (conn.getMode() != XSPSocketConnection.WireMode.FRAMED)
+				throw e; // legacy clients get one call per connection and no reply they could tell apart
+			callFailed(conn, recvFrame, threadName, nconn, e);
+			conn.finishCall();
+			return false;
+		}
 
-						// call sign fn and set return
-						respCall = CallType.ThreshSigSignRet;
-						respJson = sign_ThreshSig(share.getBytes("UTF-8"), message.getBytes("UTF-8"));
-						break;
+		if (respFrame == null)
+			return false;
 
-					case ThreshSigVerifyCall:
+		try {
+			conn.send(respFrame);
+		} finally {
+			conn.finishCall();
+		}
+		return true;
+	}
 
-						String groupKey = recvJson.getString("group-key");
-						message = recvJson.getString("msg");
+	/* runs a multiplexed call in the background; its reply goes out whenever it is ready */
+	private static void attendCallAsync(final XSPSocketConnection conn, final XSPFrame recvFrame,
+			ExecutorService calls, final String threadName, final int nconn, final boolean logged) throws IOException {
 
-						// deserialize sig shares
-						JsonArray arr = recvJson.getJsonArray("signatures");
-						byte[][] sigs = new byte[arr.size()][];
-						for (int i = 0; i < arr.size(); i++) {
-							sigs[i] = arr.getString(i).getBytes("UTF-8");
+		try {
+			calls.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						XSPFrame respFrame = dispatch(recvFrame);
+						if (respFrame == null) {
+							conn.close(); // the client would wait forever for this id
+							return;
 						}
 
-						// call verify fn and set return
-						respCall = CallType.ThreshSigVerifyRet;
-						respJson = verify_ThreshSig(groupKey.getBytes("UTF-8"), sigs, message.getBytes("UTF-8"));
-						break;
-
-					default:
-						logError(null, new Exception("Unexpected: Unknown call!"));
-						System.out.println("Unexpected: Unknown call!");
+						conn.send(respFrame);
+						if (logged)
+							XSPLog.info(threadName + ": Returned call id " + recvFrame.getRequestId()
+									+ " on connection #" + nconn + XSPLog.trace(recvFrame));
+					} catch (Exception e) {
+						callFailed(conn, recvFrame, threadName, nconn, e);
+						conn.close();
+					} finally {
+						conn.finishCall();
 					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			try {
+				conn.send(busyResponse().asReplyTo(recvFrame));
+			} finally {
+				conn.finishCall();
+			}
+		}
+	}
 
-					if (respCall == null) {
-						logError(null,
-								new Exception("Error: Wasn't able to find an appropriate response. Continuing..."));
-						continue;
-					}
+	/*
+	 * Logs a framed call that failed and tells the client with an error reply to it, so that a client with more
+	 * calls pipelined or multiplexed on the connection is not left waiting for their replies until it times out.
+	 */
+	private static void callFailed(XSPSocketConnection conn, XSPFrame recvFrame, String threadName, int nconn,
+			Exception e) {
+		logError(new Object[] { threadName + ": Call " + recvFrame.getCallType().getCallName()
+				+ (recvFrame.hasRequestId() ? " id " + recvFrame.getRequestId() : "") + " failed on connection #"
+				+ nconn + XSPLog.trace(recvFrame) }, e);
+		XSPStats.error(e instanceof IOException ? XSPStats.ErrorClass.MALFORMED : XSPStats.ErrorClass.INTERNAL);
 
-					if (respJson == null) {
-						conn.send(respCall);
-					} else {
-						conn.send(respCall, respJson.toString().getBytes("UTF-8"));
-					}
+		try {
+			JsonObject error = Json.createObjectBuilder().add("error", String.valueOf(e.getMessage())).build();
+			conn.send(new XSPFrame(CallType.XSPErrorRet, error.toString().getBytes("UTF-8")).asReplyTo(recvFrame));
+		} catch (IOException sendFailure) {
+			// the connection is gone as well
+		}
+	}
+
+	/* waits for the replies of the multiplexed calls still running on this connection */
+	private static void awaitAllAnswered(XSPSocketConnection conn) {
+		try {
+			conn.awaitInFlightBelow(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-					System.out.println("Returned call #" + ncalls);
-					br.close();
-					socket.close();
+	/*
+	 * Runs one call and builds its response, independently of the transport it came from.
+	 * Returns null if the call cannot be answered.
+	 */
+	static XSPFrame dispatch(XSPFrame recvFrame) throws IOException {
 
-				} catch (Exception e) {
-					logError(null, new Exception("Unexpected: Thread exploded during attend task!"));
-				}
+		CallType recvCall = recvFrame.getCallType();
+		byte[] payload = recvFrame.getPayload();
+
+		if (recvCall == CallType.XSPStatsCall) {
+			// always JSON, whatever the call was encoded with
+			return new XSPFrame(CallType.XSPStatsRet, XSPStats.snapshot()).asReplyTo(recvFrame);
+		}
+
+		if (recvCall == CallType.NoOp || payload == null) {
+			XSPStats.error(XSPStats.ErrorClass.MALFORMED);
+			logError(null, new Exception("Unexpected: Call was empty!"));
+			return null;
+		}
+
+		XSPCodec codec = recvFrame.isBinary() ? XSPBinaryCodec.INSTANCE : XSPJsonCodec.INSTANCE;
+		XSPStats.Timer timer = XSPStats.begin(recvCall, recvFrame.getReceivedAt(), recvFrame.getTraceIdString());
+
+		// threshsig counts the work of this thread (and of batch items, see runBatch) into the report
+		CostReport cost = (recvFrame.getFlags() & XSPFrame.FLAG_COST_REPORT) != 0 ? new CostReport() : null;
+		CostReport previous = CostReport.set(cost);
+
+		CallType respCall = null;
+		byte[] respPayload = null;
+
+		try {
+			switch (recvCall) {
+			case ThreshSigDealCall:
+				XSPCodec.DealRequest deal = codec.decodeDealRequest(payload);
+				timer.parsed();
+
+				// call deal fn and set return
+				Dealer d = genCryptoMaterial_ThreshSig(deal.keySize, deal.l, deal.k);
+				timer.computed();
+				respCall = CallType.ThreshSigDealRet;
+				GroupKey gk = SHARE_PROOFS ? d.getGroupKey() : d.getGroupKey().withoutVerifiers();
+				respPayload = codec.encodeDealResponse(gk, d.getShares());
+				break;
+
+			case ThreshSigSignCall:
+				XSPCodec.SignRequest sign = codec.decodeSignRequest(payload);
+				timer.parsed();
+
+				// call sign fn and set return
+				SigShare sig = sign_ThreshSig(sign.share, sign.message);
+				timer.computed();
+				respCall = CallType.ThreshSigSignRet;
+				respPayload = codec.encodeSignResponse(sig);
+				break;
+
+			case ThreshSigVerifyCall:
+				XSPCodec.VerifyRequest verify = codec.decodeVerifyRequest(payload);
+				timer.parsed();
+
+				// call verify fn and set return
+				List<Integer> rejected = verify.groupKey.hasVerifiers() ? new ArrayList<Integer>() : null;
+				boolean valid = verify_ThreshSig(verify.groupKey, verify.sigs, verify.message, rejected);
+				timer.computed();
+				respCall = CallType.ThreshSigVerifyRet;
+				respPayload = codec.encodeVerifyResponse(valid, rejected);
+				break;
+
+			case ThreshSigBatchSignCall:
+				XSPCodec.SignRequest[] signs = codec.decodeBatchSignRequest(payload);
+				timer.parsed();
+
+				// call sign fn on every item and set return
+				SigShare[] sigs = batchSign_ThreshSig(signs);
+				timer.computed();
+				respCall = CallType.ThreshSigBatchSignRet;
+				respPayload = codec.encodeBatchSignResponse(sigs);
+				break;
+
+			case ThreshSigBatchVerifyCall:
+				XSPCodec.VerifyRequest[] verifies = codec.decodeBatchVerifyRequest(payload);
+				timer.parsed();
+
+				// call verify fn on every item and set return
+				boolean[] valids = batchVerify_ThreshSig(verifies);
+				timer.computed();
+				respCall = CallType.ThreshSigBatchVerifyRet;
+				respPayload = codec.encodeBatchVerifyResponse(valids);
+				break;
+
+			default:
+				logError(null, new Exception("Unexpected: Unknown call!"));
 			}
+
+			if (respCall != null && cost != null)
+				respPayload = codec.appendCostReport(respPayload, cost);
+			if (respCall != null && recvFrame.hasTraceId())
+				respPayload = codec.appendTimings(respPayload, timer); // last, so that it covers everything else
+		} finally {
+			CostReport.set(previous);
+			timer.done(respCall != null);
+		}
+
+		if (respCall == null) {
+			logError(null, new Exception("Error: Wasn't able to find an appropriate response. Continuing..."));
+			return null;
 		}
+
+		return new XSPFrame(respCall, recvFrame.getFlags() & (XSPFrame.FLAG_BINARY | XSPFrame.FLAG_COST_REPORT),
+				respPayload).asReplyTo(recvFrame);
 	}
 
 	public void runServer(UnixDomainSocketServer serverSocket) throws IOException, ClassNotFoundException {
 
+		XSPWorkQueue<PendingConnection> pending = new XSPWorkQueue<PendingConnection>(QUEUE_DEPTH);
+		workQueue = pending;
+
+		// attend threads serve their connection's ordinary calls themselves, multiplexed ones go here
+		muxPool = new XSPWorkQueue<Runnable>(QUEUE_DEPTH).newExecutor(CRYPTO_THREADS, "thread-xspm-");
+
 		for (int i = 0; i < THREAD_POOL_SIZE; i++) {
-			new Thread(new XSPAttendTask(serverSocket, "thread-xspp-" + i)).start();
+			new Thread(new XSPAttendTask(pending, "thread-xspp-" + i)).start();
 		}
+
+		ExecutorService rejects = new XSPWorkQueue<Runnable>(REJECT_QUEUE_DEPTH).newExecutor(REJECT_THREADS,
+				"thread-xspr-");
+
+		new Thread(new XSPAcceptTask(serverSocket, pending, rejects), "xsp-acceptor").start();
 	}
 
-	private static JsonObject sign_ThreshSig(byte[] ks, byte[] message) throws IOException {
-		// retrieve key share
-		KeyShare sh = KeyShare.fromBytes(ks);
+	private static SigShare sign_ThreshSig(KeyShare sh, byte[] message) {
 
-		// sign the message bytes
+		// sign the message bytes, the proof only goes back to clients of keys that can check it
 		SigShare sig = sh.sign(message);
-
-		return Json.createObjectBuilder().add("id", sig.getId()).add("signature", sig.toString()).build();
+		return SHARE_PROOFS ? sig : sig.withoutProof();
 	}
 
-	private static JsonObject verify_ThreshSig(byte[] key, byte[][] sigs, byte[] message) throws IOException {
+	/* keys with verifiers check every share by its proof, collecting the positions of rejected ones if asked to;
+	 * keys without search the k-subsets of the shares for a valid one */
+	private static boolean verify_ThreshSig(GroupKey gk, SigShare[] ssh, byte[] message, List<Integer> rejected) {
 		boolean isValid = false;
 
-		// parse group key
-		GroupKey gk = GroupKey.fromBytes(key);
-
-		// convert the 64b strings to sig shares
-		SigShare[] ssh = new SigShare[sigs.length];
-		for (int i = 0; i < sigs.length; i++) {
+		if (gk.hasVerifiers()) {
 			try {
-				ssh[i] = SigShare.fromBytes(sigs[i]);
-			} catch (Exception ex) {
-				System.out.println("Detected malformed sig");
+				isValid = SigShare.verifyProofs(message, ssh, gk, rejected);
+			} catch (ThresholdSigException tse) {
+				// continue, isValid == false
 			}
-		}
-
-		if (gk.getK() <= sigs.length) {
+		} else if (gk.getK() <= ssh.length) {
 			// verify message sig
 
 			try {
-				isValid = SigShare.verifyCombinations(message, ssh, gk);
+				isValid = SigShare.verifyCombinations(message, ssh, gk, batchPool, searchParallelism());
 				// isValid = SigShare.verify(message, ssh,
 				// gk.getK(), gk.getL(), gk.getModulus(), gk.getExponent());
 			} catch (ThresholdSigException tse) {
@@ -229,80 +652,174 @@ public class XSPServer {
 			}
 		}
 
-		return Json.createObjectBuilder().add("valid", isValid).build();
+		return isValid;
 	}
 
-	private static JsonObject genCryptoMaterial_ThreshSig(int keySize, int l, int k)
-			throws UnsupportedEncodingException, IOException {
+	/* batch pool threads a combination search may take now: what the other calls in flight and the batch items
+	 * running leave of the crypto threads, so that a call with many bad shares cannot take over a busy server */
+	private static int searchParallelism() {
+		int max = SEARCH_PARALLELISM > 0 ? SEARCH_PARALLELISM : CRYPTO_THREADS;
+		int idle = CRYPTO_THREADS - (XSPStats.getInFlight() - 1) - batchPool.getActiveThreadCount();
+		return Math.max(1, Math.min(max, idle));
+	}
 
-		// Initialize a dealer with a keysize
-		Dealer d = new Dealer(keySize);
+	private static SigShare[] batchSign_ThreshSig(final XSPCodec.SignRequest[] items) throws IOException {
+		final SigShare[] sigs = new SigShare[items.length];
 
-		// Generate a set of key shares
-		d.generateKeys(k, l);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(items.length);
+		for (int i = 0; i < items.length; i++) {
+			if (items[i] == null)
+				continue; // malformed item, its signature stays null
 
-		// Get public group key and private key shares: careful with the shares!
-		GroupKey gk = d.getGroupKey();
-		KeyShare[] keys = d.getShares();
+			final int item = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						sigs[item] = sign_ThreshSig(items[item].share, items[item].message);
+					} catch (RuntimeException e) {
+						batchItemFailed(item, e); // a share that decoded but cannot sign, its signature stays null
+					}
+					return null;
+				}
+			});
+		}
 
-		// open java serializer
+		runBatch(tasks);
+		return sigs;
+	}
+
+	private static boolean[] batchVerify_ThreshSig(final XSPCodec.VerifyRequest[] items) throws IOException {
+		final boolean[] valid = new boolean[items.length];
 
-		// create Json object from this info
-		JsonArrayBuilder jabShares = Json.createArrayBuilder();
-		for (KeyShare sh : keys) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(items.length);
+		for (int i = 0; i < items.length; i++) {
+			if (items[i] == null)
+				continue; // malformed item, stays invalid
 
-			// shares to json
-			jabShares.add(Json.createObjectBuilder().add("id", sh.getId()).add("share", sh.toString()));
+			final int item = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						valid[item] = verify_ThreshSig(items[item].groupKey, items[item].sigs, items[item].message,
+								null);
+					} catch (RuntimeException e) {
+						batchItemFailed(item, e); // a key that decoded but cannot verify, stays invalid
+					}
+					return null;
+				}
+			});
 		}
 
-		JsonObject cryptoInfo = Json.createObjectBuilder().add("group-key", gk.toString()).add("shares", jabShares)
-				.build();
+		runBatch(tasks);
+		return valid;
+	}
 
-		return cryptoInfo;
+	private static void batchItemFailed(int item, RuntimeException e) {
+		XSPLog.warn("Batch item " + item + " failed: " + e);
+		XSPStats.error(XSPStats.ErrorClass.MALFORMED);
 	}
 
-	public static void logError(Object[] pInfos, Throwable pThrowable) {
-		errors++;
-		if (pThrowable != null) {
-			pThrowable.printStackTrace(System.err);
+	/* runs the items of a batch on the batch pool and waits for all of them */
+	private static void runBatch(List<Callable<Void>> tasks) throws IOException {
+		final CostReport cost = CostReport.get();
+		if (cost != null) {
+			// count the items into the caller's report, whichever pool thread they end up on
+			for (int i = 0; i < tasks.size(); i++) {
+				final Callable<Void> task = tasks.get(i);
+				tasks.set(i, new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						CostReport previous = CostReport.set(cost);
+						try {
+							return task.call();
+						} finally {
+							CostReport.set(previous);
+						}
+					}
+				});
+			}
+		}
+
+		if (tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				throw new IOException("Batch item failed", e);
+			}
+			return;
+		}
+
+		try {
+			for (Future<Void> f : batchPool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while running a batch");
+		} catch (ExecutionException e) {
+			throw new IOException("Batch item failed", e.getCause());
 		}
-		System.out.println(pInfos);
+	}
+
+	private static Dealer genCryptoMaterial_ThreshSig(int keySize, int l, int k) {
+
+		// Initialize a dealer with a keysize
+		Dealer d = new Dealer(keySize);
+
+		// Generate a set of key shares: careful with the shares!
+		d.generateKeys(k, l);
+
+		return d;
+	}
+
+	public static void logError(Object[] pInfos, Throwable pThrowable) {
+		errors.incrementAndGet();
+		XSPLog.error(pInfos != null ? Arrays.toString(pInfos) : "Error", pThrowable);
+	}
+
+	private static XSPSocketConnection openClientConnection(UnixDomainSocketClient clientSocket) throws IOException {
+		return new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket,
+				XSPSocketConnection.WireMode.FRAMED);
+	}
+
+	private static JsonObject clientCall(XSPSocketConnection conn, CallType call, JsonObject request)
+			throws IOException {
+		conn.send(call, request.toString().getBytes("UTF-8"));
+
+		XSPFrame resp = conn.receiveFrame();
+		if (resp == null || resp.getPayload() == null)
+			throw new IOException("Server closed the connection without a response to " + call.getCallName());
+		if (resp.getCallType() == CallType.XSPBusyRet)
+			throw new IOException("Server busy: " + new String(resp.getPayload(), "UTF-8"));
+
+		JsonReader jread = Json.createReader(
+				new InputStreamReader(new ByteArrayInputStream(resp.getPayload()), "UTF-8"));
+		JsonObject respJson = jread.readObject();
+		jread.close();
+		return respJson;
 	}
 
 	public void runClient() throws IOException, InterruptedException {
 		UnixDomainSocketClient clientSocket = new UnixDomainSocketClient("/tmp/hlf-xsp.sock", JUDS.SOCK_STREAM);
-		XSPSocketConnection conn = new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket);
+		XSPSocketConnection conn = openClientConnection(clientSocket);	// kept alive for all calls
 
 		// emulate deal call
-		byte[] recv = new byte[16000];
-		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
-
-		conn.send(CallType.ThreshSigDealCall, Json.createObjectBuilder().add("l", 6).add("k", 5).add("key-size", 512)
-				.build().toString().getBytes("UTF-8"));
-
 		System.out.println("1. Requested for generation of group key and shares: (l,k,keySize) = (" + 6 + "," + 5 + ","
 				+ 512 + ")");
 
-		conn.receive(recv);
-		
-		
-		@SuppressWarnings("unused")
-		String recvCall = br.readLine(); // get the call name
-		String payload = br.readLine(); // get the payload
-
-		JsonReader jread = Json.createReader(new StringReader(payload));
-		JsonObject recvJson = jread.readObject();
-		jread.close();
+		JsonObject recvJson = clientCall(conn, CallType.ThreshSigDealCall,
+				Json.createObjectBuilder().add("l", 6).add("k", 5).add("key-size", 512).build());
 
 		String pubkey = recvJson.getString("group-key");
 
 		System.out.println("2. Successfully got group key and shares:" + recvJson);
 
-		clientSocket.close();
-		clientSocket = new UnixDomainSocketClient("/tmp/hlf-xsp.sock", JUDS.SOCK_STREAM);
-		conn = new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket);
-
-		// Thread.sleep(2000);
+		String msg = "lorem ipsum dolor sit amet, " + "consectetur adipiscing elit, "
+				+ "sed do eiusmod tempor incididunt " + "ut labore et dolore magna aliqua.";
+		String tamperedMsg = "lorem ipsum dolor sit amet, " + "consectetur VIRUS elit, "
+				+ "sed do eiusmod tempor incididunt " + "ut ATTACK et dolore magna aliqua.";
 
 		int[] sharepos = { 0, 1, 2, 3, 4, 5 };
 		String[] sigshares = new String[6];
@@ -314,132 +831,59 @@ public class XSPServer {
 
 			System.out.println("3. (" + (i + 1) + "/6) Requesting signing of message m with share id = " + myid);
 
-			conn.send(CallType.ThreshSigSignCall,
-					Json.createObjectBuilder().add("share", shobj.getString("share"))
-							.add("msg",
-									"lorem ipsum dolor sit amet, " + "consectetur adipiscing elit, "
-											+ "sed do eiusmod tempor incididunt " + "ut labore et dolore magna aliqua.")
-							.build().toString().getBytes("UTF-8"));
-
-			recv = new byte[16000];
-			br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
-
-			conn.receive(recv);
-			recvCall = br.readLine(); // get the call name
-			payload = br.readLine(); // get the payload
-
-			jread = Json.createReader(new StringReader(payload));
-			JsonObject recvJson2 = jread.readObject();
-			jread.close();
+			JsonObject recvJson2 = clientCall(conn, CallType.ThreshSigSignCall,
+					Json.createObjectBuilder().add("share", shobj.getString("share")).add("msg", msg).build());
 
 			sigshares[i] = recvJson2.getString("signature");
-			// Thread.sleep(1000);
-
-			clientSocket.close();
-			clientSocket = new UnixDomainSocketClient("/tmp/hlf-xsp.sock", JUDS.SOCK_STREAM);
-			conn = new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket);
 		}
 
 		System.out.println("4. Collected 6 signature shares.");
 		System.out.println("5. Requesting verification of legitimate message m...");
 
-		conn.send(CallType.ThreshSigVerifyCall,
+		JsonObject result = clientCall(conn, CallType.ThreshSigVerifyCall,
 				Json.createObjectBuilder().add("group-key", pubkey)
 						.add("signatures",
 								Json.createArrayBuilder().add(sigshares[0]).add(sigshares[1]).add(sigshares[2])
 										.add(sigshares[3]).add(sigshares[4]).add(sigshares[5]))
-						.add("msg",
-								"lorem ipsum dolor sit amet, " + "consectetur adipiscing elit, "
-										+ "sed do eiusmod tempor incididunt " + "ut labore et dolore magna aliqua.")
-						.build().toString().getBytes("UTF-8"));
+						.add("msg", msg).build());
 
-		recv = new byte[1000];
-		br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
-
-		conn.receive(recv);
-		recvCall = br.readLine(); // get the call name
-		payload = br.readLine(); // get the payload
-
-		System.out.println("6. Result of verification = " + payload);
-
-		clientSocket.close();
-		clientSocket = new UnixDomainSocketClient("/tmp/hlf-xsp.sock", JUDS.SOCK_STREAM);
-		conn = new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket);
+		System.out.println("6. Result of verification = " + result);
 
 		System.out.println("7. Requesting verification of tampered message m...");
 
-		conn.send(CallType.ThreshSigVerifyCall,
+		result = clientCall(conn, CallType.ThreshSigVerifyCall,
 				Json.createObjectBuilder().add("group-key", pubkey)
 						.add("signatures",
 								Json.createArrayBuilder().add(sigshares[0]).add(sigshares[1]).add(sigshares[2])
 										.add(sigshares[3]).add(sigshares[4]))
-						.add("msg",
-								"lorem ipsum dolor sit amet, " + "consectetur VIRUS elit, "
-										+ "sed do eiusmod tempor incididunt " + "ut ATTACK et dolore magna aliqua.")
-						.build().toString().getBytes("UTF-8"));
+						.add("msg", tamperedMsg).build());
 
-		recv = new byte[1000];
-		br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
-
-		conn.receive(recv);
-		recvCall = br.readLine(); // get the call name
-		payload = br.readLine(); // get the payload
-
-		System.out.println("8. Result of verification = " + payload);
+		System.out.println("8. Result of verification = " + result);
 
 		System.out.println("9. Requesting verification of legitimate message m with a missing signature share...");
-		
 
-		clientSocket.close();
-		clientSocket = new UnixDomainSocketClient("/tmp/hlf-xsp.sock", JUDS.SOCK_STREAM);
-		conn = new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket);
-
-		conn.send(CallType.ThreshSigVerifyCall,
+		result = clientCall(conn, CallType.ThreshSigVerifyCall,
 				Json.createObjectBuilder().add("group-key", pubkey)
 						.add("signatures", Json.createArrayBuilder().add(sigshares[0]).add(sigshares[1])
 								// missing sig share #2
 								.add(sigshares[3]).add(sigshares[4]))
-						.add("msg",
-								"lorem ipsum dolor sit amet, " + "consectetur adipiscing elit, "
-										+ "sed do eiusmod tempor incididunt " + "ut labore et dolore magna aliqua.")
-						.build().toString().getBytes("UTF-8"));
-
-		recv = new byte[1000];
-		br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
-
-		conn.receive(recv);
-		recvCall = br.readLine(); // get the call name
-		payload = br.readLine(); // get the payload
+						.add("msg", msg).build());
 
-		System.out.println("10. Result of verification = " + payload);
+		System.out.println("10. Result of verification = " + result);
 
 		System.out.println("11. Requesting verification of legitimate message m with forged signature share...");
 
-		clientSocket.close();
-		clientSocket = new UnixDomainSocketClient("/tmp/hlf-xsp.sock", JUDS.SOCK_STREAM);
-		conn = new XSPSocketConnection("Client -> Server:" + socketFileName, clientSocket);
-
 		// TODO CHANGE THIS TO BE OK
 		sigshares[3] = "TRUDY";
 
-		conn.send(CallType.ThreshSigVerifyCall,
+		result = clientCall(conn, CallType.ThreshSigVerifyCall,
 				Json.createObjectBuilder().add("group-key", pubkey)
 						.add("signatures",
 								Json.createArrayBuilder().add(sigshares[0]).add(sigshares[1]).add(sigshares[2])
 										.add(sigshares[3]).add(sigshares[4]))
-						.add("msg",
-								"lorem ipsum dolor sit amet, " + "consectetur adipiscing elit, "
-										+ "sed do eiusmod tempor incididunt " + "ut labore et dolore magna aliqua.")
-						.build().toString().getBytes("UTF-8"));
-
-		recv = new byte[1000];
-		br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(recv), "UTF-8"));
-
-		conn.receive(recv);
-		recvCall = br.readLine(); // get the call name
-		payload = br.readLine(); // get the payload
+						.add("msg", msg).build());
 
-		System.out.println("12. Result of verification = " + payload);
+		System.out.println("12. Result of verification = " + result);
 		System.out.println("E2E test done.");
 
 		clientSocket.close();
@@ -447,6 +891,17 @@ public class XSPServer {
 
 	public void start() throws IOException, InterruptedException {
 
+		if (SERVER_MODE == ServerMode.NIO) {
+			// bind now for the same reason as below
+			new Thread(initChannelServer(), "xsp-selector").start();
+			return;
+		}
+
+		if (SERVER_MODE == ServerMode.VIRTUAL) {
+			new Thread(initThreadPerConnectionServer(), "xsp-acceptor").start();
+			return;
+		}
+
 		// do it now to avoid any race condition between socket creation and client
 		// first start
 		final UnixDomainSocketServer server = initServer();
@@ -474,25 +929,9 @@ public class XSPServer {
 
 	public void fullTest() throws InterruptedException, IOException {
 
-		// do it now to avoid any race condition between socket creation and client
-		// first start
-		final UnixDomainSocketServer server = initServer();
+		start();
 
 		try {
-			Thread serverThread = new Thread() {
-				public void run() {
-					try {
-						runServer(server);
-					} catch (IOException e) {
-						logError(new Object[] { "Server socket failure" }, e);
-					} catch (ClassNotFoundException e) {
-						logError(new Object[] { "Server deserialization failure" }, e);
-					}
-				}
-			};
-
-			serverThread.start();
-
 			for (int i = 0; i < 1; i++) {
 				Thread clientThread = new Thread() {
 					public void run() {
@@ -1,58 +1,302 @@
 package core;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.etsy.net.UnixDomainSocket;
 
 public class XSPSocketConnection {
 
+	public enum WireMode {
+		LEGACY,		// "<call name>\n<payload>", single MTU sized read
+		FRAMED		// XSPFrame header + exact length payload
+	}
+
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private final int id = ids.incrementAndGet();	// unique within the process, e.g. for captures
 	private String description;
 	private InputStream is;
 	private OutputStream os;
+	private Closeable closer;
+	private SocketChannel channel;		// set when serving a JDK channel, which takes gathering writes
+	private WireMode mode;
+	private int calls;			// calls received on this connection
+	private int inFlight;			// calls received and not yet finished, guarded by callLock
+	private volatile long idleSince = System.currentTimeMillis();
+
+	/*
+	 * Reads and writes lock separately, so that replies to multiplexed calls go out while the next call is read.
+	 * These are j.u.c. locks rather than monitors: a virtual thread blocked in a read or write while holding a
+	 * monitor pins its carrier on JDK 21 to 23, and every connection blocks in a read holding readLock.
+	 */
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final ReentrantLock callLock = new ReentrantLock();
+	private final Condition callFinished = callLock.newCondition();
+
+	// buffers reused by every call of this connection, so steady-state I/O allocates only the payloads
+	private final byte[] header = new byte[XSPFrame.HEADER_SIZE];		// guarded by readLock
+	private final ByteBuffer headerBuf = ByteBuffer.wrap(header);
+	private byte[] legacyBuf;						// guarded by readLock
+	private final ByteBuffer sendBuf = ByteBuffer.allocate(XSPServer.MTU);	// guarded by writeLock
+	private final ByteBuffer[] gather = new ByteBuffer[2];			// guarded by writeLock
+
+	private static final ByteBuffer NO_PAYLOAD = ByteBuffer.allocate(0);
 
 	public XSPSocketConnection(String description, UnixDomainSocket unixDomainSocket) throws IOException {
+		this(description, unixDomainSocket, WireMode.LEGACY);
+	}
+
+	public XSPSocketConnection(String description, final UnixDomainSocket unixDomainSocket, WireMode mode)
+			throws IOException {
 		this.description = description;
+		this.mode = mode;
 		is = unixDomainSocket.getInputStream();
 		os = unixDomainSocket.getOutputStream();
+		closer = new Closeable() {
+			@Override
+			public void close() {
+				unixDomainSocket.close();
+			}
+		};
 	}
 
-	public synchronized int receive(byte[] recv) throws IOException {
-		int readBytes = is.read(recv);
-		// System.out.println(description + " received: " + new String(recv, "UTF-8"));
-		return readBytes;
+	/*
+	 * Channels.newInputStream/newOutputStream serialize reads and writes on the channel's blocking lock,
+	 * so a reader waiting for the next call would hold back every reply. Use the channel directly instead.
+	 */
+	public XSPSocketConnection(String description, final SocketChannel channel) throws IOException {
+		this.description = description;
+		this.mode = WireMode.LEGACY;
+		this.closer = channel;
+		this.channel = channel;
+		is = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
 	}
 
-	public void send(CallType t, byte[] payload) throws IOException {
-		if (t == null)
-			throw new IllegalArgumentException("Call cannot be null!");
+	public int getId() {
+		return id;
+	}
 
-		byte[] callNameBytes = t.getCallName().getBytes("UTF-8");
+	public WireMode getMode() {
+		return mode;
+	}
 
-		ByteBuffer bb = payload != null ? ByteBuffer.allocate(callNameBytes.length + payload.length + 1)
-				: ByteBuffer.allocate(callNameBytes.length);
+	public int getCallCount() {
+		return calls;
+	}
 
-		bb.put(callNameBytes);
+	public int getInFlight() {
+		callLock.lock();
+		try {
+			return inFlight;
+		} finally {
+			callLock.unlock();
+		}
+	}
 
-		int delimiterpos = -1;
+	/**
+	 * @return when the connection last went idle (opened or all calls answered), or Long.MAX_VALUE while
+	 *         calls are being received or served
+	 */
+	public long getIdleSince() {
+		return idleSince;
+	}
 
-		if (payload != null) {
-			delimiterpos = bb.position();
-			bb.put((byte) 0x0a);
-			bb.put(payload);
+	public int receive(byte[] recv) throws IOException {
+		readLock.lock();
+		try {
+			int readBytes = is.read(recv);
+			// System.out.println(description + " received: " + new String(recv, "UTF-8"));
+			return readBytes;
+		} finally {
+			readLock.unlock();
 		}
+	}
 
-		synchronized (this) {
-			os.write(bb.array());
-			os.flush();
+	/**
+	 * Receives one call. The wire mode is detected from the first byte, and the connection
+	 * switches to it so that replies go out in the same format the peer used.
+	 *
+	 * Every received call counts as in flight until finishCall is called for it.
+	 *
+	 * @return the received frame, or null if the peer closed the connection
+	 */
+	public XSPFrame receiveFrame() throws IOException {
+		readLock.lock();
+		try {
+			return readFrame();
+		} finally {
+			readLock.unlock();
 		}
-		// System.out.println(description + " sent: " + new String(delimiterpos > 0 ?
-		// bb.put(delimiterpos, (byte) 0x0a).array() : bb.array(), "UTF-8"));
+	}
+
+	private XSPFrame readFrame() throws IOException {
+		if (is.read(header, 0, 1) <= 0)
+			return null;
+
+		idleSince = Long.MAX_VALUE;
+		long firstByteAt = System.nanoTime();
+
+		if (header[0] == XSPFrame.MAGIC) {
+			mode = WireMode.FRAMED;
+
+			readFully(header, 1, XSPFrame.HEADER_SIZE - 1);
+
+			CallType callType = XSPFrame.headerCallType(headerBuf, 0);
+			int flags = XSPFrame.headerFlags(headerBuf, 0);
+			int payloadLen = XSPFrame.headerPayloadLength(headerBuf, 0);
+
+			int requestId = 0;
+			if ((flags & XSPFrame.FLAG_REQUEST_ID) != 0) {
+				readFully(header, 0, XSPFrame.REQUEST_ID_SIZE);
+				requestId = headerBuf.getInt(0);
+			}
+
+			byte[] traceId = null;
+			if ((flags & XSPFrame.FLAG_TRACE_ID) != 0) {
+				traceId = new byte[XSPFrame.TRACE_ID_SIZE];
+				readFully(traceId, 0, traceId.length);
+			}
+
+			byte[] payload = new byte[payloadLen];
+			readFully(payload, 0, payloadLen);
+
+			received();
+			XSPFrame frame = new XSPFrame(callType, flags, requestId, traceId, payload);
+			XSPEvents.received(frame, mode, firstByteAt);
+			return frame;
+		}
+
+		// legacy: whatever arrives in one read is the whole call
+		mode = WireMode.LEGACY;
+
+		if (legacyBuf == null)
+			legacyBuf = new byte[XSPServer.MTU];
+
+		legacyBuf[0] = header[0];
+		int readBytes = is.read(legacyBuf, 1, legacyBuf.length - 1);
+		int len = 1 + Math.max(readBytes, 0);
+
+		received();
+		XSPFrame frame = XSPFrame.parseLegacy(legacyBuf, len); // copies the payload out
+		XSPEvents.received(frame, mode, firstByteAt);
+		return frame;
+	}
+
+	public void send(CallType t, byte[] payload) throws IOException {
+		this.send(new XSPFrame(t, payload));
+	}
+
+	public void send(XSPFrame frame) throws IOException {
+		if (frame.getCallType() == null)
+			throw new IllegalArgumentException("Call cannot be null!");
+
+		byte[] payload = frame.getPayload();
+
+		writeLock.lock();
+		try {
+			sendBuf.clear();
+			XSPFrame.writePrefix(sendBuf, frame, mode);
+
+			if (channel != null) {
+				// header and payload in one gathering write, without joining them
+				sendBuf.flip();
+				gather[0] = sendBuf;
+				gather[1] = payload != null ? ByteBuffer.wrap(payload) : NO_PAYLOAD;
+				while (sendBuf.hasRemaining() || gather[1].hasRemaining()) {
+					channel.write(gather);
+				}
+			} else if (payload == null || payload.length <= sendBuf.remaining()) {
+				// small enough to join in the send buffer and go out in a single native write
+				if (payload != null)
+					sendBuf.put(payload);
+				os.write(sendBuf.array(), 0, sendBuf.position());
+				os.flush();
+			} else {
+				os.write(sendBuf.array(), 0, sendBuf.position());
+				os.write(payload);
+				os.flush();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		// System.out.println(description + " sent: " + new String(payload, "UTF-8"));
 	}
 
 	public void send(CallType t) throws IOException {
 		this.send(t, null);
 	}
-}
\ No newline at end of file
+
+	private void received() {
+		callLock.lock();
+		try {
+			calls++;
+			inFlight++;
+		} finally {
+			callLock.unlock();
+		}
+	}
+
+	/* marks a received call as answered (or given up on); the connection goes idle with its last call */
+	public void finishCall() {
+		callLock.lock();
+		try {
+			if (inFlight > 0 && --inFlight == 0)
+				idleSince = System.currentTimeMillis();
+			callFinished.signalAll();
+		} finally {
+			callLock.unlock();
+		}
+	}
+
+	/* blocks until fewer than 'max' received calls are in flight */
+	public void awaitInFlightBelow(int max) throws InterruptedException {
+		callLock.lock();
+		try {
+			while (inFlight >= max) {
+				callFinished.await();
+			}
+		} finally {
+			callLock.unlock();
+		}
+	}
+
+	/* closes the underlying socket, e.g. when a multiplexed call fails and cannot be answered */
+	public void close() {
+		try {
+			closer.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = is.read(b, off, len);
+			if (n < 0)
+				throw new EOFException(description + ": connection closed mid-frame");
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+/* XSP runtime statistics
+ *
+ * Per call type counters and latency histograms, split into the phases a call goes through:
+ * 	- queue		received -> picked up by a worker
+ * 	- parse		payload -> threshsig objects
+ * 	- crypto	deal, sign or verify
+ * 	- serialize	result -> payload
+ * 	- total		received -> reply built
+ * plus in-flight gauges, error counts by class and the trace id of the slowest traced call of each type.
+ * A snapshot is returned by the __CALL_XSP_STATS call.
+ */
+public final class XSPStats {
+
+	public enum ErrorClass {
+		BUSY,		// call turned away by admission control
+		MALFORMED,	// call or batch item that could not be decoded
+		IO,		// connection dropped mid-call or broken
+		INTERNAL	// call that failed after it was decoded
+	}
+
+	static final class CallStats {
+
+		final LongAdder count = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final XSPHistogram queue = new XSPHistogram();
+		final XSPHistogram parse = new XSPHistogram();
+		final XSPHistogram crypto = new XSPHistogram();
+		final XSPHistogram serialize = new XSPHistogram();
+		final XSPHistogram total = new XSPHistogram();
+
+		// exemplar: the slowest call that carried a trace id, to look up on the caller's side
+		long slowestTraced;
+		String slowestTrace;
+
+		synchronized void traced(String traceId, long nanos) {
+			if (nanos > slowestTraced) {
+				slowestTraced = nanos;
+				slowestTrace = traceId;
+			}
+		}
+	}
+
+	/* phase clock of a single call; created when a worker picks the call up, also feeds the JFR dispatch event */
+	static final class Timer {
+
+		final CallType call;
+		final CallStats stats;
+		final String traceId;
+		final long receivedAt;
+		final long startedAt;
+		long parsedAt;
+		long computedAt;
+		final XSPEvents.CallDispatched event = new XSPEvents.CallDispatched();
+
+		Timer(CallType call, CallStats stats, long receivedAt, String traceId) {
+			this.call = call;
+			this.stats = stats;
+			this.traceId = traceId;
+			this.receivedAt = receivedAt;
+			this.startedAt = System.nanoTime();
+			event.begin();
+		}
+
+		void parsed() {
+			parsedAt = System.nanoTime();
+		}
+
+		void computed() {
+			computedAt = System.nanoTime();
+		}
+
+		long queueNanos() {
+			return startedAt - receivedAt;
+		}
+
+		long parseNanos() {
+			return parsedAt != 0 ? parsedAt - startedAt : 0;
+		}
+
+		long cryptoNanos() {
+			return computedAt != 0 ? computedAt - parsedAt : 0;
+		}
+
+		/* from receipt until now */
+		long elapsedNanos() {
+			return System.nanoTime() - receivedAt;
+		}
+
+		/* records the phases that ran; a call that never got parsed counts as malformed */
+		void done(boolean ok) {
+			long now = System.nanoTime();
+			inFlight.decrementAndGet();
+
+			stats.count.increment();
+			stats.queue.record(startedAt - receivedAt);
+			stats.total.record(now - receivedAt);
+
+			if (parsedAt != 0)
+				stats.parse.record(parsedAt - startedAt);
+			if (computedAt != 0)
+				stats.crypto.record(computedAt - parsedAt);
+			if (ok && computedAt != 0)
+				stats.serialize.record(now - computedAt);
+
+			if (!ok) {
+				stats.errors.increment();
+				error(parsedAt == 0 ? ErrorClass.MALFORMED : ErrorClass.INTERNAL);
+			}
+			if (traceId != null)
+				stats.traced(traceId, now - receivedAt);
+
+			if (event.shouldCommit()) {
+				event.call = call.getCallName();
+				event.traceId = traceId;
+				event.queueTime = queueNanos();
+				event.parseTime = parseNanos();
+				event.cryptoTime = cryptoNanos();
+				event.serializeTime = ok && computedAt != 0 ? now - computedAt : 0;
+				event.ok = ok;
+				event.commit();
+			}
+		}
+	}
+
+	private static final long startedAt = System.currentTimeMillis();
+	private static final Map<CallType, CallStats> calls = new EnumMap<CallType, CallStats>(CallType.class);
+	private static final Map<ErrorClass, LongAdder> errors = new EnumMap<ErrorClass, LongAdder>(ErrorClass.class);
+	private static final AtomicInteger inFlight = new AtomicInteger();
+	private static final AtomicInteger connections = new AtomicInteger();
+
+	private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+
+	static {
+		// filled once and only read afterwards, so no locking on the hot path
+		for (CallType t : CallType.values()) {
+			calls.put(t, new CallStats());
+		}
+		for (ErrorClass c : ErrorClass.values()) {
+			errors.put(c, new LongAdder());
+		}
+	}
+
+	private XSPStats() {
+	}
+
+	/* starts timing a call that was received at 'receivedAt' (System.nanoTime); 'traceId' may be null */
+	static Timer begin(CallType t, long receivedAt, String traceId) {
+		inFlight.incrementAndGet();
+		return new Timer(t, calls.get(t), receivedAt, traceId);
+	}
+
+	static void error(ErrorClass c) {
+		errors.get(c).increment();
+	}
+
+	static void connectionOpened() {
+		connections.incrementAndGet();
+	}
+
+	static void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	public static int getInFlight() {
+		return inFlight.get();
+	}
+
+	public static long getErrors(ErrorClass c) {
+		return errors.get(c).sum();
+	}
+
+	/**
+	 * @return a JSON snapshot of all counters; latencies are in microseconds
+	 */
+	static byte[] snapshot() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator g = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+
+		g.writeStartObject();
+		g.write("uptime-ms", System.currentTimeMillis() - startedAt);
+		g.write("in-flight", inFlight.get());
+		g.write("connections", connections.get());
+
+		XSPWorkQueue<?> q = XSPServer.getWorkQueue();
+		if (q != null) {
+			g.writeStartObject("queue").write("depth", q.getDepth()).write("capacity", q.getCapacity())
+					.write("rejected", q.getRejected()).writeEnd();
+		}
+
+		g.writeStartObject("errors");
+		for (Map.Entry<ErrorClass, LongAdder> e : errors.entrySet()) {
+			g.write(e.getKey().name().toLowerCase(), e.getValue().sum());
+		}
+		g.writeEnd();
+		g.write("log-dropped", XSPLog.getDropped());
+
+		g.writeStartObject("calls");
+		for (Map.Entry<CallType, CallStats> e : calls.entrySet()) {
+			CallStats s = e.getValue();
+			if (s.count.sum() == 0)
+				continue;
+
+			g.writeStartObject(e.getKey().getCallName());
+			g.write("count", s.count.sum());
+			g.write("errors", s.errors.sum());
+			writeHistogram(g, "queue-us", s.queue);
+			writeHistogram(g, "parse-us", s.parse);
+			writeHistogram(g, "crypto-us", s.crypto);
+			writeHistogram(g, "serialize-us", s.serialize);
+			writeHistogram(g, "total-us", s.total);
+			synchronized (s) {
+				if (s.slowestTrace != null)
+					g.writeStartObject("slowest-traced").write("trace-id", s.slowestTrace)
+							.write("total-us", s.slowestTraced / 1e3).writeEnd();
+			}
+			g.writeEnd();
+		}
+		g.writeEnd();
+
+		g.writeEnd();
+		g.close();
+		return out.toByteArray();
+	}
+
+	private static void writeHistogram(JsonGenerator g, String name, XSPHistogram h) {
+		g.writeStartObject(name);
+		g.write("count", h.getCount());
+		g.write("mean", h.getMean() / 1e3);
+		g.write("p50", h.getValueAtQuantile(0.50) / 1e3);
+		g.write("p90", h.getValueAtQuantile(0.90) / 1e3);
+		g.write("p99", h.getValueAtQuantile(0.99) / 1e3);
+		g.write("p999", h.getValueAtQuantile(0.999) / 1e3);
+		g.write("max", h.getMax() / 1e3);
+		g.writeEnd();
+	}
+}
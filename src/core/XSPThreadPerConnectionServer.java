@@ -0,0 +1,146 @@
+package core;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* XSP thread-per-connection transport
+ *
+ * A single acceptor on a blocking JDK unix domain channel hands every accepted connection to its own
+ * thread, so bursts of connections never queue behind a fixed set of attend threads. On JDK 21+ these
+ * are virtual threads; older runtimes fall back to a cached pool of platform threads.
+ *
+ * Connection threads only do socket I/O and wait. The calls themselves run on a bounded crypto pool,
+ * so a burst of large verifyCombinations cannot occupy every carrier thread. XSPSocketConnection holds
+ * only j.u.c. locks while it blocks on the channel, so a waiting connection does not pin its carrier.
+ */
+public class XSPThreadPerConnectionServer implements Runnable {
+
+	private static final long IDLE_SWEEP_MS = 1000;
+
+	private Path socketPath;
+	private int backlog;
+	private ExecutorService connections;
+	private ExecutorService crypto;
+
+	private ServerSocketChannel serverChannel;
+	private Map<SocketChannel, XSPSocketConnection> open = new ConcurrentHashMap<SocketChannel, XSPSocketConnection>();
+
+	public XSPThreadPerConnectionServer(String socketFileName, int backlog, ExecutorService crypto) {
+		this.socketPath = Paths.get(socketFileName);
+		this.backlog = backlog;
+		this.crypto = crypto;
+		this.connections = newConnectionExecutor();
+	}
+
+	/**
+	 * Returns a virtual-thread-per-task executor when the runtime has one, otherwise an unbounded
+	 * cached pool of platform threads.
+	 */
+	static ExecutorService newConnectionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			final AtomicInteger nthreads = new AtomicInteger();
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "thread-xspc-" + nthreads.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	public void bind() throws IOException {
+		Files.deleteIfExists(socketPath); // stale socket file from a previous run
+
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(socketPath), backlog);
+	}
+
+	@Override
+	public void run() {
+
+		if (XSPServer.KEEP_ALIVE && XSPServer.IDLE_TIMEOUT_MS > 0) {
+			Thread sweeper = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					closeIdle();
+				}
+			}, "xsp-idle-sweeper");
+			sweeper.setDaemon(true);
+			sweeper.start();
+		}
+
+		int nconns = 0;
+		while (serverChannel.isOpen()) {
+			try {
+				final SocketChannel channel = serverChannel.accept();
+				final int nconn = ++nconns;
+
+				connections.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(channel, nconn);
+					}
+				});
+			} catch (IOException e) {
+				XSPServer.logError(new Object[] { "Accept failure" }, e);
+			}
+		}
+	}
+
+	private void serve(SocketChannel channel, int nconn) {
+		try {
+			XSPSocketConnection conn = new XSPSocketConnection("Server -> Client:" + socketPath, channel);
+			open.put(channel, conn);
+
+			XSPServer.serveConnection(conn, "thread-xspc-" + nconn, nconn, crypto);
+
+		} catch (Exception e) {
+			XSPServer.logError(new Object[] { "Connection #" + nconn + " failed" }, e);
+		} finally {
+			open.remove(channel);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	/* blocking channel reads have no timeout, so idle connections are closed from here */
+	private void closeIdle() {
+		while (serverChannel.isOpen()) {
+			try {
+				Thread.sleep(IDLE_SWEEP_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			for (Map.Entry<SocketChannel, XSPSocketConnection> e : open.entrySet()) {
+				if (now - e.getValue().getIdleSince() > XSPServer.IDLE_TIMEOUT_MS) {
+					try {
+						e.getKey().close(); // unblocks the reader with an AsynchronousCloseException
+					} catch (IOException ioe) {
+						// already gone
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* XSP admission queue
+ *
+ * Bounded hand-off between whoever accepts work (juds acceptor, selector, connection threads) and the
+ * threads that run it. Offers never block: when the queue is full the caller answers the client with
+ * a busy response right away, instead of letting calls pile up in the kernel backlog.
+ *
+ * Also keeps the depth and wait time figures the busy response reports.
+ */
+public class XSPWorkQueue<T> {
+
+	private BlockingQueue<T> queue;
+	private int capacity;
+
+	private AtomicLong accepted = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private AtomicLong totalWaitNanos = new AtomicLong();
+	private AtomicLong maxWaitNanos = new AtomicLong();
+
+	public XSPWorkQueue(int capacity) {
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<T>(capacity);
+	}
+
+	/**
+	 * @return false if the queue is full and the item was not admitted
+	 */
+	public boolean offer(T item) {
+		if (queue.offer(item))
+			return true;
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	public T take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/* to be called when an item leaves the queue, with the nanoTime at which it was offered */
+	void recordWait(long enqueuedAtNanos) {
+		long wait = System.nanoTime() - enqueuedAtNanos;
+		accepted.incrementAndGet();
+		totalWaitNanos.addAndGet(wait);
+
+		long max;
+		while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait))
+			;
+	}
+
+	public int getDepth() {
+		return queue.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public double getAvgWaitMillis() {
+		long n = accepted.get();
+		return n == 0 ? 0 : totalWaitNanos.get() / (n * 1e6);
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * Builds a fixed size pool that queues its tasks here, records how long each of them waited, and
+	 * rejects (RejectedExecutionException) once the queue is full. Only usable on a queue of Runnables.
+	 */
+	@SuppressWarnings("unchecked")
+	ThreadPoolExecutor newExecutor(int threads, final String namePrefix) {
+		final AtomicInteger nworkers = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, (BlockingQueue<Runnable>) queue,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, namePrefix + nworkers.getAndIncrement());
+					}
+				}, new ThreadPoolExecutor.AbortPolicy() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+						rejected.incrementAndGet();
+						super.rejectedExecution(r, e);
+					}
+				}) {
+			@Override
+			public void execute(final Runnable command) {
+				final long enqueuedAt = System.nanoTime();
+				super.execute(new Runnable() {
+					@Override
+					public void run() {
+						recordWait(enqueuedAt);
+						command.run();
+					}
+				});
+			}
+		};
+	}
+}
@@ -11,6 +11,7 @@ public class Combination<T> {
 	private int[] indexes;
 	
 	private int currIter;
+	private boolean unranked;		// indexes hold the first subset to return
 	
 	public Combination(Class<T[]> clazz, T[] input, int k) {
 		this.clazz = clazz;
@@ -19,14 +20,56 @@ public class Combination<T> {
 		this.indexes = new int[k];
 	}
 	
+	// starts at the subset of the given rank, in the lexicographic order generateNext goes through
+	public Combination(Class<T[]> clazz, T[] input, int k, long rank) {
+		this(clazz, input, k);
+		if (k > input.length)
+			return;
+		if (rank >= count(input.length, k)) {
+			// past the last subset, generateNext returns null
+			for (int i = 0; i < k; i++)
+				indexes[i] = input.length - k + i;
+			currIter = 1;
+			return;
+		}
+		
+		// with the earlier positions fixed, count(n - 1 - x, k - 1 - i) subsets have x at position i
+		int x = 0;
+		for (int i = 0; i < k; i++, x++) {
+			long c;
+			while (rank >= (c = count(input.length - 1 - x, k - 1 - i))) {
+				rank -= c;
+				x++;
+			}
+			indexes[i] = x;
+		}
+		unranked = true;
+	}
+	
+	// number of subsets of size k of n elements, or Long.MAX_VALUE when that does not fit in a long
+	public static long count(int n, int k) {
+		if (k < 0 || k > n)
+			return 0;
+		long c = 1;
+		try {
+			for (int i = 0; i < Math.min(k, n - k); i++) {
+				c = Math.multiplyExact(c, n - i) / (i + 1);
+			}
+		} catch (ArithmeticException e) {
+			return Long.MAX_VALUE;
+		}
+		return c;
+	}
+	
 	public T[] generateNext() {
 		
 		if (k <= input.length) {
 			
 			if (currIter == 0) {
 				currIter++;
-			    // first index sequence: 0, 1, 2, ...
-			    for (int i = 0; (indexes[i] = i) < k - 1; i++);  
+			    // first index sequence: 0, 1, 2, ... unless starting at a rank
+			    if (!unranked)
+			    	for (int i = 0; (indexes[i] = i) < k - 1; i++);  
 			    return getSubset(input, indexes);
 			} else {
 				
@@ -0,0 +1,183 @@
+package threshsig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The search of SigShare.verifyCombinations for a k-subset of the shares that
+ * verifies<BR>
+ *
+ * Subsets are numbered by their rank in the order Combination generates them.
+ * A parallel search splits the ranks into one range per thread it may use and
+ * searches the ranges side by side on a fork-join pool. The search ends as a
+ * sequential one would, at the lowest ranked subset that either verifies or
+ * has a null or duplicate share; each range stops once a subset ranked below
+ * its next one has done so.
+ */
+final class CombinationSearch {
+
+  // Constants and variables
+  //............................................................................
+  private final SigShare[] sigs;
+
+  private final VerifyContext context;
+
+  /** The caller's cost report, installed on the pool threads while they search */
+  private final CostReport cost = CostReport.get();
+
+  /** Rank of the lowest subset that ended the search so far */
+  private final AtomicLong decided = new AtomicLong(Long.MAX_VALUE);
+
+  /** Why that subset ended it, null if it verified */
+  private ThresholdSigException failure;
+
+  // Constructors
+  //............................................................................
+  CombinationSearch(final SigShare[] sigs, final VerifyContext context) {
+    this.sigs = sigs;
+    this.context = context;
+  }
+
+  // Methods
+  //............................................................................
+  /**
+   * Searches the subsets of rank from (inclusive) to to (exclusive)
+   *
+   * @param pool - the pool to search on
+   * @param parallelism - how many ranges to search side by side
+   *
+   * @return true if the lowest ranked subset that decides the search verifies
+   * @throws ThresholdSigException if that subset has a null or duplicate share
+   */
+  boolean run(final ForkJoinPool pool, final long from, final long to, final int parallelism)
+      throws ThresholdSigException {
+    final long step = (to - from + parallelism - 1) / parallelism;
+    final List<Range> ranges = new ArrayList<Range>(parallelism);
+    for (long start = from; start < to; start += step) {
+      ranges.add(new Range(start, Math.min(start + step, to)));
+    }
+
+    pool.invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        ForkJoinTask.invokeAll(ranges);
+      }
+    });
+
+    if (decided.get() == Long.MAX_VALUE) {
+      return false;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return true;
+  }
+
+  /** Ends the search at the subset of the given rank unless a lower one already has */
+  private synchronized void decide(final long rank, final ThresholdSigException tse) {
+    if (rank < decided.get()) {
+      failure = tse;
+      decided.set(rank);
+    }
+  }
+
+  /**
+   * Searches the subsets of rank from (inclusive) to to (exclusive) on the
+   * calling thread
+   *
+   * @return true if one of the subsets verifies
+   * @throws ThresholdSigException if a subset has a null or duplicate share
+   */
+  static boolean search(final VerifyContext context, final SigShare[] sigs, final long from,
+      final long to) throws ThresholdSigException {
+    final Combination<SigShare> c = new Combination<SigShare>(SigShare[].class, sigs, context.k, from);
+
+    for (long rank = from; rank < to; rank++) {
+      final SigShare[] subsigs = c.generateNext();
+      if (subsigs == null) { // reached all possible combinations
+        break;
+      }
+      if (attempt(context, subsigs, rank, sigs.length)) {
+        return true; // found a successful verification
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Verifies one subset, counting it into the cost report and the flight
+   * recorder
+   *
+   * @param combination - the rank of the subset
+   * @param shares - how many shares the subset was drawn from
+   */
+  static boolean attempt(final VerifyContext context, final SigShare[] subsigs, final long combination,
+      final int shares) throws ThresholdSigException {
+    CostReport.combination();
+    final ThreshSigEvents.VerifyAttempt event = new ThreshSigEvents.VerifyAttempt();
+    event.begin();
+    boolean valid = false;
+    try {
+      valid = context.verify(subsigs, event);
+    } finally {
+      if (event.shouldCommit()) {
+        event.combination = (int) combination;
+        event.k = context.k;
+        event.l = context.l;
+        event.shares = shares;
+        event.modulusBits = context.n.bitLength();
+        event.valid = valid;
+        event.commit();
+      }
+    }
+    return valid;
+  }
+
+  /**
+   * One range of ranks, searched in order with a context of its own until a
+   * subset decides the search or a lower ranked one has
+   */
+  private final class Range extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final long from, to;
+
+    Range(final long from, final long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      final CostReport previous = CostReport.set(cost);
+      try {
+        final VerifyContext own = new VerifyContext(context);
+        final Combination<SigShare> c = new Combination<SigShare>(SigShare[].class, sigs, own.k, from);
+
+        for (long rank = from; rank < to && rank < decided.get(); rank++) {
+          final SigShare[] subsigs = c.generateNext();
+          if (subsigs == null) {
+            break;
+          }
+          try {
+            if (attempt(own, subsigs, rank, sigs.length)) {
+              decide(rank, null);
+              return;
+            }
+          } catch (final ThresholdSigException tse) {
+            decide(rank, tse);
+            return;
+          }
+        }
+      } finally {
+        CostReport.set(previous);
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package threshsig;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Crypto cost of a single request<BR>
+ *
+ * Counts the signature share combinations examined, the modular
+ * exponentiations run and their total exponent bit length, and the wall
+ * time spent in each phase of signing, verification and dealing. Work is
+ * only counted on threads the report is installed on (see set), so the
+ * cost of requests that do not ask for a report is a thread local read.
+ *
+ * A report may be installed on several threads at once, e.g. for the items
+ * of a batch running side by side.
+ */
+public final class CostReport {
+
+  // Constants and variables
+  //............................................................................
+  private static final ThreadLocal<CostReport> current = new ThreadLocal<CostReport>();
+
+  private final LongAdder combinations = new LongAdder();
+
+  private final LongAdder modPows = new LongAdder();
+
+  private final LongAdder exponentBits = new LongAdder();
+
+  /** Wall time per phase in nanoseconds, in the order phases first ran */
+  private final Map<String, LongAdder> phases = new LinkedHashMap<String, LongAdder>();
+
+  // Public Methods
+  //............................................................................
+
+  /**
+   * Installs a report on the calling thread
+   *
+   * @param report - the report to count into, or null to stop counting
+   * @return the report installed before, to be restored once done
+   */
+  public static CostReport set(final CostReport report) {
+    final CostReport previous = current.get();
+    if (report == null) {
+      current.remove();
+    } else {
+      current.set(report);
+    }
+    return previous;
+  }
+
+  /**
+   * @return the report installed on the calling thread, or null
+   */
+  public static CostReport get() {
+    return current.get();
+  }
+
+  public long getCombinations() {
+    return combinations.sum();
+  }
+
+  public long getModPows() {
+    return modPows.sum();
+  }
+
+  public long getExponentBits() {
+    return exponentBits.sum();
+  }
+
+  /**
+   * @return a copy of the wall time per phase, in nanoseconds
+   */
+  public Map<String, Long> getPhaseNanos() {
+    final Map<String, Long> copy = new LinkedHashMap<String, Long>();
+    synchronized (phases) {
+      for (final Map.Entry<String, LongAdder> entry : phases.entrySet()) {
+        copy.put(entry.getKey(), entry.getValue().sum());
+      }
+    }
+    return copy;
+  }
+
+  // Counting, for the threshsig operations
+  //............................................................................
+
+  /**
+   * Returns base^exponent mod m, counting it into the current report
+   */
+  static BigInteger modPow(final BigInteger base, final BigInteger exponent, final BigInteger m) {
+    final CostReport report = current.get();
+    if (report != null) {
+      report.modPows.increment();
+      report.exponentBits.add(exponent.bitLength());
+    }
+    return base.modPow(exponent, m);
+  }
+
+  static void combination() {
+    final CostReport report = current.get();
+    if (report != null) {
+      report.combinations.increment();
+    }
+  }
+
+  /**
+   * Adds wall time to a phase of the current report
+   */
+  static void phase(final String phase, final long nanos) {
+    final CostReport report = current.get();
+    if (report == null) {
+      return;
+    }
+
+    LongAdder total;
+    synchronized (report.phases) {
+      total = report.phases.get(phase);
+      if (total == null) {
+        total = new LongAdder();
+        report.phases.put(phase, total);
+      }
+    }
+    total.add(nanos);
+  }
+}
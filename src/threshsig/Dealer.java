@@ -65,8 +65,13 @@ public class Dealer {
     /* Generate a Sophie Germain prime keypair */
     // pr = generateSophieGermainPrime();
     // qr = generateSophieGermainPrime();
+    ThreshSigEvents.DealerPhase phase = beginPhase();
     p = SafePrimeGen.generateStrongPrime(keysize, ThreshUtil.getRandom());
+    endPhase(phase, "prime-search-p", k, l);
+
+    phase = beginPhase();
     q = SafePrimeGen.generateStrongPrime(keysize, ThreshUtil.getRandom());
+    endPhase(phase, "prime-search-q", k, l);
 
     pr = (p.subtract(ThreshUtil.ONE)).divide(ThreshUtil.TWO);
     qr = (q.subtract(ThreshUtil.ONE)).divide(ThreshUtil.TWO);
@@ -100,13 +105,21 @@ public class Dealer {
 
     // Create Secret KeyShares and KeyShare Verifiers
     // Note: We don't use the private exponent 'd' after this
+    phase = beginPhase();
     shares = generateKeyShares(d, m, k, l, n);
+    endPhase(phase, "key-shares", k, l);
 
     // Create verification shares
+    phase = beginPhase();
     vk = generateVerifiers(n, shares);
+    endPhase(phase, "verifiers", k, l);
 
-    // Create a group key
-    gk = new GroupKey(k, l, keysize, vk, e, n);
+    // Create a group key, with the verifiers the shares' proofs are checked against
+    final BigInteger[] shareVerifiers = new BigInteger[l];
+    for (int i = 0; i < l; i++) {
+      shareVerifiers[i] = shares[i].getVerifier();
+    }
+    gk = new GroupKey(k, l, e, n, vk, shareVerifiers);
     keyInit = true;
   }
 
@@ -186,6 +199,9 @@ public class Dealer {
    * Computes v[i] = v^^s[i] mod n, where v is an element of QR_n <BR>
    * Returns the group verifier and sets the verifier in each share<br>
    * 
+   * All shares are verified against the same v, which the group key carries
+   * along with the v[i] (see SigShare.verifyProofs)
+   * 
    * @param n - Size of modulo for group key
    * @param secrets - array of shares
    * 
@@ -195,34 +211,54 @@ public class Dealer {
   // and generate them simultaneously
   private BigInteger generateVerifiers(final BigInteger n, final KeyShare[] secrets) {
     debug("Generating Verifiers");
-    // BigInteger[] v;
     BigInteger rand = null;
 
-    // v = new BigInteger[secrets.length];
-
-    for (final KeyShare element : secrets) {
-      // rand is an element of Q*n (squares of relative primes mod n)
-      while (true) {
-        rand = new BigInteger(n.bitLength(), ThreshUtil.getRandom());
-        // ensure that rand is relatively prime to n
-        final BigInteger d = rand.gcd(n);
-        if (d.compareTo(ThreshUtil.ONE) == 0) {
-          break;
-        }
-        // Else d was not relatively prime
-        // Note: This should be very rare
-        debug("Verifier was not relatively prime");
+    // rand is an element of Q*n (squares of relative primes mod n)
+    while (true) {
+      rand = new BigInteger(n.bitLength(), ThreshUtil.getRandom());
+      // ensure that rand is relatively prime to n
+      final BigInteger d = rand.gcd(n);
+      if (d.compareTo(ThreshUtil.ONE) == 0) {
+        break;
       }
-      // Rand is an element of QsubN - square mod n
-      // This value is the group verifier
-      rand = rand.multiply(rand).mod(n);
+      // Else d was not relatively prime
+      // Note: This should be very rare
+      debug("Verifier was not relatively prime");
+    }
+    // Rand is an element of QsubN - square mod n
+    // This value is the group verifier
+    rand = rand.multiply(rand).mod(n);
 
-      element.setVerifiers(rand.modPow(element.getSecret(), n), rand);
+    for (final KeyShare element : secrets) {
+      element.setVerifiers(CostReport.modPow(rand, element.getSecret(), n), rand);
     }
 
     return rand;
   }
 
+  /**
+   * Starts timing a step of generateKeys, for the flight recorder and the
+   * cost report of the request
+   */
+  private static ThreshSigEvents.DealerPhase beginPhase() {
+    final ThreshSigEvents.DealerPhase event = new ThreshSigEvents.DealerPhase();
+    event.startedAt = System.nanoTime();
+    event.begin();
+    return event;
+  }
+
+  private void endPhase(final ThreshSigEvents.DealerPhase event, final String phase, final int k,
+      final int l) {
+    CostReport.phase("deal-" + phase, System.nanoTime() - event.startedAt);
+    if (event.shouldCommit()) {
+      event.phase = phase;
+      event.keysize = keysize;
+      event.k = k;
+      event.l = l;
+      event.commit();
+    }
+  }
+
   /**
    * Returns the factorial of the given integer as a BigInteger
    * 
@@ -1,6 +1,7 @@
 package threshsig;
 
 import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.PublicKey;
@@ -30,12 +31,19 @@ public class GroupKey {
   /** The RSA modulus of the groupKeyPair */
   private BigInteger n;
 
+  /** The group verifier v, or null if this key carries no verifiers */
+  private BigInteger v;
+
+  /** The share verifiers v^s[i] by share id - 1, or null */
+  private BigInteger[] shareVerifiers;
+
   public GroupKey(final int k, final int l, final int keysize, final BigInteger v,
       final BigInteger e, final BigInteger n) {
     this.k = k;
     this.l = l;
     this.e = e;
     this.n = n;
+    this.v = v;
   }
 
   /**
@@ -73,6 +81,35 @@ public class GroupKey {
   public BigInteger getExponent() {
     return e;
   }
+
+  /**
+   * Returns the group verifier
+   * 
+   * @return The group verifier v, or null if this key carries no verifiers
+   */
+  public BigInteger getGroupVerifier() {
+    return shareVerifiers != null ? v : null;
+  }
+
+  /**
+   * Returns the verifier of a share
+   * 
+   * @param id - the id of the share, 1 to l
+   * @return v^s[id], or null if this key carries no verifiers
+   */
+  public BigInteger getShareVerifier(final int id) {
+    return shareVerifiers != null ? shareVerifiers[id - 1] : null;
+  }
+
+  /**
+   * Tells whether signature shares can be checked against this key one by one
+   * (see SigShare.verifyProofs)
+   * 
+   * @return true if this key carries the group and share verifiers
+   */
+  public boolean hasVerifiers() {
+    return shareVerifiers != null;
+  }
   
   // /FGODINHO
   
@@ -83,23 +120,71 @@ public class GroupKey {
 	    this.n = n;
   }
   
-  @Override
-  public String toString() {
+  /**
+   * A group key with the group verifier and the l share verifiers, so that
+   * signature shares can be checked by their proofs
+   */
+  public GroupKey(final int k, final int l, final BigInteger e, final BigInteger n, final BigInteger v,
+		  final BigInteger[] shareVerifiers) {
+	    this(k, l, e, n);
+	    if (shareVerifiers.length != l)
+	    	throw new IllegalArgumentException("Expected " + l + " share verifiers, got " + shareVerifiers.length);
+	    this.v = v;
+	    this.shareVerifiers = shareVerifiers.clone();
+  }
+  
+  /**
+   * The same key without its verifiers, whose encoding is the shorter one of
+   * keys that predate them
+   */
+  public GroupKey withoutVerifiers() {
+	  return shareVerifiers == null ? this : new GroupKey(k, l, e, n);
+  }
+  
+  /**
+   * Returns the raw (k, l, exponent, modulus) encoding that toString wraps in Base64,
+   * followed by (group verifier, l, l x share verifier) if the key carries verifiers
+   */
+  public byte[] getEncoded() {
 
 	byte[] expBytes = e.toByteArray();
 	byte[] modBytes = n.toByteArray();
+	
+	byte[] vBytes = null;
+	byte[][] viBytes = null;
+	int verifiersLen = 0;
+	if (shareVerifiers != null) {
+		vBytes = v.toByteArray();
+		viBytes = new byte[shareVerifiers.length][];
+		verifiersLen = 4 + vBytes.length + 4; // 4 for size of v, v, 4 for count
+		for (int i = 0; i < viBytes.length; i++) {
+			viBytes[i] = shareVerifiers[i].toByteArray();
+			verifiersLen += 4 + viBytes[i].length;
+		}
+	}
   
-	byte[] groupKeyBytes = ByteBuffer
-  		.allocate(4 + 4 + 4 + expBytes.length + 4 + modBytes.length) // 4 for k, 4 for l, 4 for size of exp, exp, 4 for size of mod, mod
+	ByteBuffer bb = ByteBuffer
+  		.allocate(4 + 4 + 4 + expBytes.length + 4 + modBytes.length + verifiersLen) // 4 for k, 4 for l, 4 for size of exp, exp, 4 for size of mod, mod
   		.putInt(k)
   		.putInt(l)
   		.putInt(expBytes.length)
   		.put(expBytes)
   		.putInt(modBytes.length)
-  		.put(modBytes)
-  		.array();
+  		.put(modBytes);
+	
+	if (shareVerifiers != null) {
+		bb.putInt(vBytes.length).put(vBytes).putInt(viBytes.length);
+		for (byte[] vi : viBytes) {
+			bb.putInt(vi.length).put(vi);
+		}
+	}
 	
-	return Base64.getEncoder().encodeToString(groupKeyBytes);
+	return bb.array();
+  }
+  
+  @Override
+  public String toString() {
+	return Base64.getEncoder().encodeToString(getEncoded());
   }
   
   public static GroupKey fromBytes(byte[] hexKey) {
@@ -108,6 +193,10 @@ public class GroupKey {
 	  return parseGroupKey(groupKeyBytes);
   }
   
+  public static GroupKey fromEncoded(byte[] groupKeyBytes) {
+	  return parseGroupKey(groupKeyBytes);
+  }
+  
   public static GroupKey fromString(String hexKey) {
 	  
 	  byte[] groupKeyBytes = Base64.getDecoder().decode(hexKey);
@@ -117,25 +206,54 @@ public class GroupKey {
 
   private static GroupKey parseGroupKey(byte[] groupKeyBytes) {
 	  
-	  ByteBuffer bb = ByteBuffer.wrap(groupKeyBytes);
+	  try {
+		  return readGroupKey(ByteBuffer.wrap(groupKeyBytes));
+	  } catch (BufferUnderflowException bue) {
+		  return null;
+	  } catch (NumberFormatException nfe) {
+		  return null; // zero length exponent, modulus or verifier
+	  }
+  }
+  
+  private static GroupKey readGroupKey(ByteBuffer bb) {
 	 
 	  // get k and l
 	  int k = bb.getInt();
 	  int l = bb.getInt();
 	  
 	  // get exp
-	  int expBytesLen = bb.getInt();
-	  byte[] expBytes = new byte[expBytesLen];
-	  bb.get(expBytes, 0, expBytesLen);
+	  byte[] expBytes = getBytes(bb);
 	  BigInteger exp = new BigInteger(expBytes);
 
 	  // get mod
-	  int modBytesLen = bb.getInt();
-	  byte[] modBytes = new byte[modBytesLen];
-	  bb.get(modBytes, 0, modBytesLen);
+	  byte[] modBytes = getBytes(bb);
 	  BigInteger mod = new BigInteger(modBytes);
 	  
+	  // keys without verifiers end here
+	  if (!bb.hasRemaining())
+		  return new GroupKey(k, l, exp, mod);
+	  
+	  // get verifiers, one per share, each taking at least its length
+	  BigInteger v = new BigInteger(getBytes(bb));
+	  int count = bb.getInt();
+	  if (count != l || count < 0 || count > bb.remaining() / 4)
+		  return null;
+	  BigInteger[] shareVerifiers = new BigInteger[count];
+	  for (int i = 0; i < shareVerifiers.length; i++) {
+		  shareVerifiers[i] = new BigInteger(getBytes(bb));
+	  }
+	  
 	  // return new key
-	  return new GroupKey(k, l, exp, mod);
+	  return new GroupKey(k, l, exp, mod, v, shareVerifiers);
+  }
+  
+  /** Reads a length prefixed field, checking the length against what is left before allocating */
+  private static byte[] getBytes(ByteBuffer bb) {
+	  int len = bb.getInt();
+	  if (len < 0 || len > bb.remaining())
+		  throw new BufferUnderflowException();
+	  byte[] bytes = new byte[len];
+	  bb.get(bytes);
+	  return bytes;
   }
 }
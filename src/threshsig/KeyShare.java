@@ -1,6 +1,7 @@
 package threshsig;
 
 import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
@@ -108,15 +109,32 @@ public class KeyShare {
    * @return a sig share with a verifier
    */
   public SigShare sign(final byte[] b) {
+    final ThreshSigEvents.Sign event = new ThreshSigEvents.Sign();
+    event.begin();
+    final long started = System.nanoTime();
+    try {
+      return signShare(b);
+    } finally {
+      CostReport.phase("sign", System.nanoTime() - started);
+      if (event.shouldCommit()) {
+        event.id = id;
+        event.modulusBits = n.bitLength();
+        event.messageSize = b.length;
+        event.commit();
+      }
+    }
+  }
+
+  private SigShare signShare(final byte[] b) {
     final BigInteger x = (new BigInteger(b)).mod(n);
 
     final int randbits = n.bitLength() + 3 * ThreshUtil.L1;
 
     // r \elt (0, 2^L(n)+3*l1)
     final BigInteger r = (new BigInteger(randbits, random));
-    final BigInteger vprime = groupVerifier.modPow(r, n);
-    final BigInteger xtilde = x.modPow(ThreshUtil.FOUR.multiply(delta), n);
-    final BigInteger xprime = xtilde.modPow(r, n);
+    final BigInteger vprime = CostReport.modPow(groupVerifier, r, n);
+    final BigInteger xtilde = CostReport.modPow(x, ThreshUtil.FOUR.multiply(delta), n);
+    final BigInteger xprime = CostReport.modPow(xtilde, r, n);
 
     BigInteger c = null;
     BigInteger z = null;
@@ -135,14 +153,15 @@ public class KeyShare {
       md.update(verifier.mod(n).toByteArray());
 
       // debug("xi^2: " + x.modPow(signVal,n).modPow(TWO,n));
-      md.update(x.modPow(signVal, n).modPow(ThreshUtil.TWO, n).toByteArray());
+      md.update(CostReport.modPow(CostReport.modPow(x, signVal, n), ThreshUtil.TWO, n).toByteArray());
 
       // debug("v': "+ vprime);
       md.update(vprime.toByteArray());
 
       // debug("x': " + xprime);
       md.update(xprime.toByteArray());
-      c = new BigInteger(md.digest()).mod(n);
+      // c is the L1 bit hash itself (Shoup's H'), which keeps the verifier's vi^c and xi^c short
+      c = new BigInteger(1, md.digest());
       z = (c.multiply(secret)).add(r);
     } catch (final java.security.NoSuchAlgorithmException e) {
       debug("Provider could not locate SHA message digest .");
@@ -151,7 +170,7 @@ public class KeyShare {
 
     final Verifier ver = new Verifier(z, c, verifier, groupVerifier);
 
-    return new SigShare(id, x.modPow(signVal, n), ver);
+    return new SigShare(id, CostReport.modPow(x, signVal, n), ver);
   }
 
   // Debugging
@@ -180,8 +199,10 @@ public class KeyShare {
   }
   
   
-  @Override
-  public String toString() {
+  /**
+   * Returns the raw encoding that toString wraps in Base64
+   */
+  public byte[] getEncoded() {
 
 	byte[] secretBytes = secret.toByteArray();
 	byte[] nBytes = n.toByteArray();
@@ -206,7 +227,12 @@ public class KeyShare {
   		.put(gVerifierBytes)
   		.array();
 	
-	return Base64.getEncoder().encodeToString(keyShareBytes);
+	return keyShareBytes;
+  }
+  
+  @Override
+  public String toString() {
+	return Base64.getEncoder().encodeToString(getEncoded());
   }
   
   public static KeyShare fromBytes(byte[] hexKey) {
@@ -215,6 +241,10 @@ public class KeyShare {
 	  return parseKeyShare(keyShareBytes);
   }
   
+  public static KeyShare fromEncoded(byte[] keyShareBytes) {
+	  return parseKeyShare(keyShareBytes);
+  }
+  
   public static KeyShare fromString(String hexKey) {
 	  
 	  byte[] keyShareBytes = Base64.getDecoder().decode(hexKey);
@@ -223,43 +253,52 @@ public class KeyShare {
   
   private static KeyShare parseKeyShare(byte[] keyShareBytes) {
 	  
-	  ByteBuffer bb = ByteBuffer.wrap(keyShareBytes);
+	  try {
+		  return readKeyShare(ByteBuffer.wrap(keyShareBytes));
+	  } catch (BufferUnderflowException bue) {
+		  return null;
+	  } catch (NumberFormatException nfe) {
+		  return null; // zero length field
+	  }
+  }
+  
+  private static KeyShare readKeyShare(ByteBuffer bb) {
 	 
 	  // get id
 	  int id = bb.getInt();
 	  
 	  // get secret
-	  int secretBytesLen = bb.getInt();
-	  byte[] secretBytes = new byte[secretBytesLen];
-	  bb.get(secretBytes, 0, secretBytesLen);
+	  byte[] secretBytes = getBytes(bb);
 	  BigInteger secret = new BigInteger(secretBytes);
 
 	  // get n
-	  int nBytesLen = bb.getInt();
-	  byte[] nBytes = new byte[nBytesLen];
-	  bb.get(nBytes, 0, nBytesLen);
+	  byte[] nBytes = getBytes(bb);
 	  BigInteger n = new BigInteger(nBytes);
 	 
 	  // get delta
-	  int deltaBytesLen = bb.getInt();
-	  byte[] deltaBytes = new byte[deltaBytesLen];
-	  bb.get(deltaBytes, 0, deltaBytesLen);
+	  byte[] deltaBytes = getBytes(bb);
 	  BigInteger delta = new BigInteger(deltaBytes);
 	  
 	  // get verifier
-	  int verifierBytesLen = bb.getInt();
-	  byte[] verifierBytes = new byte[verifierBytesLen];
-	  bb.get(verifierBytes, 0, verifierBytesLen);
+	  byte[] verifierBytes = getBytes(bb);
 	  BigInteger verifier = new BigInteger(verifierBytes);
 	  
 	  // get n
-	  int gVerifierBytesLen = bb.getInt();
-	  byte[] gVerifierBytes = new byte[gVerifierBytesLen];
-	  bb.get(gVerifierBytes, 0, gVerifierBytesLen);
+	  byte[] gVerifierBytes = getBytes(bb);
 	  BigInteger gVerifier = new BigInteger(gVerifierBytes);
 	  
 	  // return new key
 	  return new KeyShare(id, secret, n, delta, verifier, gVerifier);
   }
   
+  /** Reads a length prefixed field, checking the length against what is left before allocating */
+  private static byte[] getBytes(ByteBuffer bb) {
+	  int len = bb.getInt();
+	  if (len < 0 || len > bb.remaining())
+		  throw new BufferUnderflowException();
+	  byte[] bytes = new byte[len];
+	  bb.get(bytes);
+	  return bytes;
+  }
+  
 }
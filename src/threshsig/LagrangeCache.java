@@ -0,0 +1,135 @@
+package threshsig;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delta-scaled Lagrange coefficients and group size factorials, shared by all
+ * threads of the process<BR>
+ *
+ * The coefficients of a set of k share ids only depend on l and on the set, so
+ * they are computed once per (l, set) and kept, up to MAX_SETS sets; most
+ * signatures are combined from the same few sets, usually the first k ids.
+ * Sets are bit masks of id - 1, so groups of more than MAX_CACHED_L shares
+ * get their coefficients computed every time.
+ *
+ * Reference: Shoup, pg 7.
+ */
+final class LagrangeCache {
+
+  // Constants and variables
+  //............................................................................
+  /** Largest group size whose sets are cached; l and the mask share a long key */
+  static final int MAX_CACHED_L = 57;
+
+  /** Sets kept at most, across all group sizes */
+  static final int MAX_SETS = 8192;
+
+  private static final AtomicReferenceArray<BigInteger> factorials = new AtomicReferenceArray<BigInteger>(
+      MAX_CACHED_L + 1);
+
+  /** Coefficients by (mask << 6 | l), in increasing id order */
+  private static final ConcurrentHashMap<Long, BigInteger[]> sets = new ConcurrentHashMap<Long, BigInteger[]>();
+
+  private LagrangeCache() {
+  }
+
+  // Methods
+  //............................................................................
+  /**
+   * Returns the factorial of the given integer as a BigInteger
+   *
+   * @return l!
+   */
+  static BigInteger factorial(final int l) {
+    BigInteger x = l <= MAX_CACHED_L ? factorials.get(l) : null;
+    if (x != null) {
+      return x;
+    }
+
+    x = BigInteger.valueOf(1l);
+    for (int i = 1; i <= l; i++) {
+      x = x.multiply(BigInteger.valueOf(i));
+    }
+
+    if (l <= MAX_CACHED_L) {
+      factorials.set(l, x);
+    }
+    return x;
+  }
+
+  /**
+   * Returns the coefficients of a set of share ids
+   *
+   * @param l - the group size
+   * @param ids - k distinct ids in {1...l}, in any order
+   *
+   * @return lambda(ids[i]) for every i, in the order of ids
+   */
+  static BigInteger[] lambdas(final int l, final int[] ids) {
+    if (l > MAX_CACHED_L) {
+      return compute(ids, factorial(l));
+    }
+
+    long mask = 0;
+    for (final int id : ids) {
+      mask |= 1L << (id - 1);
+    }
+    final Long key = Long.valueOf(mask << 6 | l);
+
+    BigInteger[] sorted = sets.get(key);
+    if (sorted == null) {
+      final int[] sortedIds = new int[ids.length];
+      int j = 0;
+      for (long m = mask; m != 0; m &= m - 1) {
+        sortedIds[j++] = Long.numberOfTrailingZeros(m) + 1;
+      }
+      sorted = compute(sortedIds, factorial(l));
+      if (sets.size() < MAX_SETS) {
+        sets.putIfAbsent(key, sorted);
+      }
+    }
+
+    // from id order to the order asked for
+    final BigInteger[] lambdas = new BigInteger[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      lambdas[i] = sorted[Long.bitCount(mask & ((1L << (ids[i] - 1)) - 1))];
+    }
+    return lambdas;
+  }
+
+  /**
+   * Compute lagarange interpolation points Reference: Shoup, pg 7.
+   *
+   * @param S - a set of k points in {0...l}
+   * @param delta - the factorial of the group size
+   *
+   * @return the Lagarange interpolation of these points at 0, for each point
+   */
+  private static BigInteger[] compute(final int[] S, final BigInteger delta) {
+    final BigInteger[] lambdas = new BigInteger[S.length];
+
+    for (int i = 0; i < S.length; i++) {
+      final int ik = S[i];
+      // lambda(id,l) = PI {id!=j, 0<j<=l} (i-j')/(id-j')
+      BigInteger value = delta;
+
+      for (final int j : S) {
+        if (j != ik) {
+          value = value.multiply(BigInteger.valueOf(j));
+        }
+      }
+
+      for (final int j : S) {
+        if (j != ik) {
+          value = value.divide(BigInteger.valueOf(j - ik));
+        }
+      }
+
+      lambdas[i] = value;
+    }
+
+    return lambdas;
+  }
+}
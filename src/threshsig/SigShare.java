@@ -5,6 +5,8 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Signature Shares Class<BR>
@@ -19,8 +21,6 @@ public class SigShare {
 
 // Constants and variables
   //............................................................................
-  private final static boolean CHECKVERIFIER = false;//true;
-
   private int id;
 
   private BigInteger sig;
@@ -88,140 +88,7 @@ public class SigShare {
   //............................................................................
   public static boolean verify(final byte[] data, final SigShare[] sigs, final int k, final int l,
       final BigInteger n, final BigInteger e) throws ThresholdSigException {
-    // Sanity Check - make sure there are at least k unique sigs out of l
-    // possible
-
-    final boolean[] haveSig = new boolean[l];
-    for (int i = 0; i < k; i++) {
-      // debug("Checking sig " + sigs[i].getId());
-      if (sigs[i] == null) {
-        throw new ThresholdSigException("Null signature");
-      }
-      if (haveSig[sigs[i].getId() - 1]) {
-        throw new ThresholdSigException("Duplicate signature: " + sigs[i].getId());
-      }
-      haveSig[sigs[i].getId() - 1] = true;
-    }
-
-    final BigInteger x = (new BigInteger(data)).mod(n);
-    final BigInteger delta = SigShare.factorial(l);
-
-    // Test the verifier of each signature to ensure there are
-    // no dummy sigs thrown in to corrupt the batch
-    if (CHECKVERIFIER) {
-      final BigInteger FOUR = BigInteger.valueOf(4l);
-      final BigInteger TWO = BigInteger.valueOf(2l);
-      final BigInteger xtilde = x.modPow(FOUR.multiply(delta), n);
-
-      try {
-        final MessageDigest md = MessageDigest.getInstance("SHA");
-
-        for (int i = 0; i < k; i++) {
-          md.reset();
-          final Verifier ver = sigs[i].getSigVerifier();
-          final BigInteger v = ver.getGroupVerifier();
-          final BigInteger vi = ver.getShareVerifier();
-
-          // debug("v :" + v);
-          md.update(v.toByteArray());
-
-          // debug("xtilde :" + xtilde);
-          md.update(xtilde.toByteArray());
-
-          // debug("vi :" + vi);
-          md.update(vi.toByteArray());
-
-          final BigInteger xi = sigs[i].getSig();
-          // debug("xi^2 :" + xi.modPow(TWO,n));
-          md.update(xi.modPow(TWO, n).toByteArray());
-
-          final BigInteger vz = v.modPow(ver.getZ(), n);
-
-          final BigInteger vinegc = vi.modPow(ver.getC(), n).modInverse(n);
-          // debug("v^z*v^-c :" + vz.multiply(vinegc).mod(n));
-          md.update(vz.multiply(vinegc).mod(n).toByteArray());
-
-          final BigInteger xtildez = xtilde.modPow(ver.getZ(), n);
-
-          // TODO: CHECK PAPER!
-          final BigInteger xineg2c = xi.modPow(ver.getC(), n).modInverse(n);
-          // According to Shoup, pg. 8 this should be:
-          // xi.modPow(TWO,n).modPow(ver.getC(),n).modInverse(n);
-
-          // Something to do with working in Q_n since every
-          // element is a square
-
-          // debug("xi^-2cx: " + xineg2c.multiply(xtildez).mod(n));
-          md.update(xineg2c.multiply(xtildez).mod(n).toByteArray());
-          final BigInteger result = new BigInteger(md.digest()).mod(n);
-
-          if (!result.equals(ver.getC())) {
-            debug("Share verifier is not OK");
-            return false;
-          }
-        }
-      } catch (final java.security.NoSuchAlgorithmException ex) {
-        debug("Provider could not locate SHA message digest .");
-        ex.printStackTrace();
-      }
-    }
-
-    BigInteger w = BigInteger.valueOf(1l);
-
-    for (int i = 0; i < k; i++) {
-      w = w.multiply(sigs[i].getSig().modPow(SigShare.lambda(sigs[i].getId(), sigs, delta), n));
-    }
-
-    // eprime = delta^2*4
-    final BigInteger eprime = delta.multiply(delta).shiftLeft(2);
-
-    w = w.mod(n);
-    final BigInteger xeprime = x.modPow(eprime, n);
-    final BigInteger we = w.modPow(e, n);
-    return (xeprime.compareTo(we) == 0);
-  }
-
-  /**
-   * Returns the factorial of the given integer as a BigInteger
-   * 
-   * @return l!
-   */
-  private static BigInteger factorial(final int l) {
-    BigInteger x = BigInteger.valueOf(1l);
-    for (int i = 1; i <= l; i++) {
-      x = x.multiply(BigInteger.valueOf(i));
-    }
-
-    return x;
-  }
-
-  /**
-   * Compute lagarange interpolation points Reference: Shoup, pg 7.
-   * 
-   * @param ik - a point in S
-   * @param S - a set of k points in {0...l}
-   * @param delta - the factorial of the group size
-   * 
-   * @return the Lagarange interpolation of these points at 0
-   */
-  private static BigInteger lambda(final int ik, final SigShare[] S,
-      final BigInteger delta) {
-    // lambda(id,l) = PI {id!=j, 0<j<=l} (i-j')/(id-j')
-    BigInteger value = delta;
-
-    for (final SigShare element : S) {
-      if (element.getId() != ik) {
-        value = value.multiply(BigInteger.valueOf(element.getId()));
-      }
-    }
-
-    for (final SigShare element : S) {
-      if (element.getId() != ik) {
-        value = value.divide(BigInteger.valueOf((element.getId() - ik)));
-      }
-    }
-
-    return value;
+    return new VerifyContext(data, k, l, n, e).verify(sigs, null);
   }
 
   // Debugging
@@ -233,19 +100,53 @@ public class SigShare {
   
   // /FGODINHO
   
-  @Override
-  public String toString() {
+  /**
+   * Returns the raw (id, signature) encoding that toString wraps in Base64,
+   * followed by the proof (z, c) if the share carries one
+   */
+  public byte[] getEncoded() {
 
 	byte[] sigBytes = sig.toByteArray();
 	
-	byte[] sigShareBytes = ByteBuffer
-  		.allocate(4 + 4 + sigBytes.length) // 4 for id, 4 size of sig, sig
+	byte[] zBytes = null;
+	byte[] cBytes = null;
+	int proofLen = 0;
+	if (hasProof()) {
+		zBytes = sigVerifier.getZ().toByteArray();
+		cBytes = sigVerifier.getC().toByteArray();
+		proofLen = 4 + zBytes.length + 4 + cBytes.length; // 4 size of z, z, 4 size of c, c
+	}
+	
+	ByteBuffer bb = ByteBuffer
+  		.allocate(4 + 4 + sigBytes.length + proofLen) // 4 for id, 4 size of sig, sig
   		.putInt(id)
   		.putInt(sigBytes.length)
-  		.put(sigBytes)
-  		.array();
+  		.put(sigBytes);
 	
-	return Base64.getEncoder().encodeToString(sigShareBytes);
+	if (proofLen > 0)
+		bb.putInt(zBytes.length).put(zBytes).putInt(cBytes.length).put(cBytes);
+	
+	return bb.array();
+  }
+  
+  /**
+   * Tells whether this share carries its proof of correctness (z, c)
+   */
+  public boolean hasProof() {
+	  return sigVerifier != null && sigVerifier.getZ() != null && sigVerifier.getC() != null;
+  }
+  
+  /**
+   * The same share without its proof, whose encoding is the shorter one of
+   * shares that predate proofs on the wire
+   */
+  public SigShare withoutProof() {
+	  return sigVerifier == null ? this : new SigShare(id, sig, null);
+  }
+  
+  @Override
+  public String toString() {
+	return Base64.getEncoder().encodeToString(getEncoded());
   }
   
   public static SigShare fromBytes(byte[] hexSig) {
@@ -254,6 +155,10 @@ public class SigShare {
 	  return parseSigShare(sigShareBytes);
   }
   
+  public static SigShare fromEncoded(byte[] sigShareBytes) {
+	  return parseSigShare(sigShareBytes);
+  }
+  
   public static SigShare fromString(String hexSig) {
 	  
 	  byte[] sigShareBytes = Base64.getDecoder().decode(hexSig);
@@ -270,36 +175,176 @@ public class SigShare {
 		  int id = bb.getInt();
 		  
 		  // get sig bytes
-		  int sigBytesLen = bb.getInt();
-		  byte[] sigBytes = new byte[sigBytesLen];
-		  bb.get(sigBytes, 0, sigBytesLen);
+		  byte[] sigBytes = getBytes(bb);
+		  
+		  // shares without a proof end here
+		  if (!bb.hasRemaining())
+			  return new SigShare(id, sigBytes);
+		  
+		  // get proof, checked against the verifiers of the group key
+		  byte[] zBytes = getBytes(bb);
+		  byte[] cBytes = getBytes(bb);
 		  
 		  // return sig share
-		  return new SigShare(id, sigBytes);
+		  return new SigShare(id, new BigInteger(sigBytes),
+				  new Verifier(new BigInteger(zBytes), new BigInteger(cBytes), null, null));
 		  
 	  } catch (BufferUnderflowException bue) {
 		  return null;
 	  }
   }
   
+  /** Reads a length prefixed field, checking the length against what is left before allocating */
+  private static byte[] getBytes(ByteBuffer bb) {
+	  int len = bb.getInt();
+	  if (len < 0 || len > bb.remaining())
+		  throw new BufferUnderflowException();
+	  byte[] bytes = new byte[len];
+	  bb.get(bytes);
+	  return bytes;
+  }
+  
   public static boolean verifyCombinations(final byte[] data, final SigShare[] sigs, final GroupKey gk) {
+	  return verifyCombinations(data, sigs, gk, null, 1);
+  }
+  
+  /**
+   * As verifyCombinations, searching on up to parallelism threads of the pool
+   * once the first subset has failed on the calling thread<BR>
+   * 
+   * The remaining subsets are split by rank into parallelism ranges searched
+   * side by side. The result is the sequential one: true, or a
+   * ThresholdSigException, from the lowest ranked subset that verifies or has
+   * a null or duplicate share.
+   * 
+   * @param pool - the pool to search on, or null to search on the calling thread
+   * @param parallelism - how many threads of the pool the search may use
+   */
+  public static boolean verifyCombinations(final byte[] data, final SigShare[] sigs, final GroupKey gk,
+		  final ForkJoinPool pool, final int parallelism) {
 	  
-	  Combination<SigShare> c = new Combination<SigShare>(SigShare[].class, sigs, gk.getK());
-	  SigShare[] subsigs = null;
+	  VerifyContext context = new VerifyContext(data, gk.getK(), gk.getL(), gk.getModulus(), gk.getExponent());
+	  long combinations = Combination.count(sigs.length, gk.getK());
 	  
-	  // try out combinations of signature shares with arrays of size K
-		do {
-			subsigs = c.generateNext();
-			if (subsigs == null) // reached all possible combinations
-				break;
-			
-			if (verify(data, subsigs, gk.getK(), gk.getL(), gk.getModulus(), gk.getExponent()))			
-				return true;  // found a successful verification
-		} while (subsigs != null);
+	  // the first subset is the usual answer, and not worth a fork
+	  if (CombinationSearch.search(context, sigs, 0, 1))
+		  return true;
 	  
-		// at the worst case, no combination succeeds
-	  return false;
+	  // too many subsets to number them in a long: they can still be gone through in order, not split by rank
+	  if (pool == null || parallelism < 2 || combinations < 3 || combinations == Long.MAX_VALUE)
+		  return CombinationSearch.search(context, sigs, 1, combinations);
+	  
+	  int ranges = (int) Math.min(parallelism, combinations - 1);
+	  return new CombinationSearch(sigs, context).run(pool, 1, combinations, ranges);
   }
   
+  /**
+   * Verifies a signature by the proofs of its shares, for group keys that carry
+   * verifiers (see GroupKey.hasVerifiers)<BR>
+   * 
+   * Checks the proof of each share against the group key on its own, keeping the
+   * shares that pass, and combines the first k of them, so the cost grows with
+   * the number of shares rather than with the number of their k-subsets as in
+   * verifyCombinations. Shares that are null, have no proof, a bad proof, an id
+   * out of range or the id of a share already kept are rejected.
+   * 
+   * @param data - the signed message
+   * @param sigs - the signature shares, any number of them
+   * @param gk - a group key with verifiers
+   * @param rejected - if not null, receives the positions in sigs of the rejected shares
+   * 
+   * @return true if at least k shares passed and they combine to a valid signature
+   */
+  public static boolean verifyProofs(final byte[] data, final SigShare[] sigs, final GroupKey gk,
+		  final List<Integer> rejected) {
+	  
+	  if (!gk.hasVerifiers())
+		  throw new ThresholdSigException("Group key carries no verifiers");
+	  
+	  final int k = gk.getK();
+	  final int l = gk.getL();
+	  final BigInteger n = gk.getModulus();
+	  final VerifyContext context = new VerifyContext(data, k, l, n, gk.getExponent());
+	  final BigInteger xtilde = CostReport.modPow(context.x, ThreshUtil.FOUR.multiply(context.delta), n);
+	  
+	  final long started = System.nanoTime();
+	  final SigShare[] kept = new SigShare[k];
+	  final boolean[] haveSig = new boolean[l];
+	  int count = 0;
+	  for (int i = 0; i < sigs.length; i++) {
+		  final SigShare s = sigs[i];
+		  boolean ok = s != null && s.getId() >= 1 && s.getId() <= l && !haveSig[s.getId() - 1]
+				  && s.hasProof() && checkProof(s, xtilde, gk);
+		  
+		  if (!ok) {
+			  if (rejected != null)
+				  rejected.add(i);
+			  continue;
+		  }
+		  haveSig[s.getId() - 1] = true;
+		  if (count < k)
+			  kept[count] = s;
+		  count++;
+	  }
+	  CostReport.phase("verify-proofs", System.nanoTime() - started);
+	  
+	  if (count < k)
+		  return false;
+	  
+	  // a single combination of shares known to be good
+	  return CombinationSearch.attempt(context, kept, 0, sigs.length);
+  }
+  
+  /**
+   * Checks the proof (z, c) that a share was computed with the secret behind
+   * its share verifier vi = v^s: recomputes v' = v^z * vi^-c and
+   * x' = xtilde^z * xi^-c, which KeyShare.signShare got as v^r and xtilde^r,
+   * and compares c with the hash of (v, xtilde, vi, xi^2, v', x').<BR>
+   * 
+   * Reference: Shoup, pg. 8, with xi = x^(4*delta*s) as KeyShare signs, where
+   * the paper has xi = x^(2*delta*s) and so xi^-2c.
+   */
+  private static boolean checkProof(final SigShare s, final BigInteger xtilde, final GroupKey gk) {
+	  final ThreshSigEvents.ShareProof event = new ThreshSigEvents.ShareProof();
+	  event.begin();
+	  boolean valid = false;
+	  try {
+		  final BigInteger n = gk.getModulus();
+		  final BigInteger v = gk.getGroupVerifier();
+		  final BigInteger vi = gk.getShareVerifier(s.getId());
+		  final BigInteger xi = s.getSig();
+		  final BigInteger z = s.getSigVerifier().getZ();
+		  final BigInteger c = s.getSigVerifier().getC();
+		  
+		  if (xi.signum() <= 0 || xi.compareTo(n) >= 0 || z.signum() < 0 || c.signum() < 0)
+			  return false;
+		  
+		  final BigInteger vprime = CostReport.modPow(v, z, n)
+				  .multiply(CostReport.modPow(vi, c, n).modInverse(n)).mod(n);
+		  final BigInteger xprime = CostReport.modPow(xtilde, z, n)
+				  .multiply(CostReport.modPow(xi, c, n).modInverse(n)).mod(n);
+		  
+		  final MessageDigest md = MessageDigest.getInstance("SHA");
+		  md.update(v.toByteArray());
+		  md.update(xtilde.toByteArray());
+		  md.update(vi.toByteArray());
+		  md.update(CostReport.modPow(xi, ThreshUtil.TWO, n).toByteArray());
+		  md.update(vprime.toByteArray());
+		  md.update(xprime.toByteArray());
+		  valid = new BigInteger(1, md.digest()).equals(c);
+		  return valid;
+	  } catch (final ArithmeticException ae) {
+		  return false; // not invertible mod n, cannot be a share
+	  } catch (final java.security.NoSuchAlgorithmException ex) {
+		  throw new ThresholdSigException("Provider could not locate SHA message digest");
+	  } finally {
+		  if (event.shouldCommit()) {
+			  event.id = s.getId();
+			  event.modulusBits = gk.getModulus().bitLength();
+			  event.valid = valid;
+			  event.commit();
+		  }
+	  }
+  }
 
 }
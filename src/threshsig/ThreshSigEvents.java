@@ -0,0 +1,130 @@
+package threshsig;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the threshold signature operations<BR>
+ *
+ * Events cost next to nothing while no recording is running, so they are
+ * always emitted. Record them with e.g.
+ * -XX:StartFlightRecording=filename=xsp.jfr and list them with
+ * "jfr print --categories Threshsig xsp.jfr".
+ */
+final class ThreshSigEvents {
+
+  private ThreshSigEvents() {
+  }
+
+  /**
+   * One combination of k signature shares tried by SigShare.verifyCombinations
+   */
+  @Name("threshsig.VerifyAttempt")
+  @Label("Verify Attempt")
+  @Category({ "XSP", "Threshsig" })
+  @Description("Verification of one combination of k signature shares")
+  @StackTrace(false)
+  static final class VerifyAttempt extends Event {
+
+    @Label("Combination")
+    @Description("Index of the combination tried, starting at 0")
+    int combination;
+
+    @Label("k")
+    int k;
+
+    @Label("l")
+    int l;
+
+    @Label("Shares")
+    @Description("Signature shares the combinations are drawn from")
+    int shares;
+
+    @Label("Modulus Bits")
+    int modulusBits;
+
+    @Label("Interpolation")
+    @Description("Lagrange coefficients and the product of the raised shares")
+    @Timespan
+    long interpolation;
+
+    @Label("Exponentiation")
+    @Description("Final x^e' and w^e comparison; x^e' is computed once per message, by the first combination")
+    @Timespan
+    long exponentiation;
+
+    @Label("Valid")
+    boolean valid;
+  }
+
+  /**
+   * The proof of one signature share checked by SigShare.verifyProofs
+   */
+  @Name("threshsig.ShareProof")
+  @Label("Share Proof")
+  @Category({ "XSP", "Threshsig" })
+  @Description("Check of one signature share's proof of correctness against the group key")
+  @StackTrace(false)
+  static final class ShareProof extends Event {
+
+    @Label("Share Id")
+    int id;
+
+    @Label("Modulus Bits")
+    int modulusBits;
+
+    @Label("Valid")
+    boolean valid;
+  }
+
+  /**
+   * KeyShare.sign
+   */
+  @Name("threshsig.Sign")
+  @Label("Sign")
+  @Category({ "XSP", "Threshsig" })
+  @Description("Signature share and proof of correctness for one message")
+  @StackTrace(false)
+  static final class Sign extends Event {
+
+    @Label("Share Id")
+    int id;
+
+    @Label("Modulus Bits")
+    int modulusBits;
+
+    @Label("Message Size")
+    int messageSize;
+  }
+
+  /**
+   * A step of Dealer.generateKeys
+   */
+  @Name("threshsig.DealerPhase")
+  @Label("Dealer Phase")
+  @Category({ "XSP", "Threshsig" })
+  @Description("Prime search, share or verifier generation of a key deal")
+  @StackTrace(false)
+  static final class DealerPhase extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Key Size")
+    int keysize;
+
+    @Label("k")
+    int k;
+
+    @Label("l")
+    int l;
+
+    /** Not recorded, for the cost report of the deal */
+    transient long startedAt;
+  }
+}
@@ -0,0 +1,135 @@
+package threshsig;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Verification of one message under one group key<BR>
+ *
+ * Holds what every subset of signature shares tried for the message has in
+ * common: x = data mod n, delta = l!, x^e' with e' = 4*delta^2, and the
+ * duplicate check array. Only the product w of the raised shares depends on
+ * the subset, so a combination search pays for the rest once. Its Lagrange
+ * coefficients come from the LagrangeCache and the product from LagrangeProduct.
+ *
+ * Not thread safe: one context serves the subsets of one search, one at a time;
+ * threads searching side by side each take a copy.
+ */
+class VerifyContext {
+
+  // Constants and variables
+  //............................................................................
+  final int k, l;
+
+  final BigInteger n, e;
+
+  /** The message, mod n */
+  final BigInteger x;
+
+  /** l! */
+  final BigInteger delta;
+
+  /** x^(4*delta^2) mod n, computed by the first subset that gets that far */
+  private BigInteger xeprime;
+
+  /** Ids seen in the subset being checked, by id - 1 */
+  private final boolean[] haveSig;
+
+  /** Ids and values of the subset being checked, in its order */
+  private final int[] ids;
+
+  private final BigInteger[] bases;
+
+  // Constructors
+  //............................................................................
+  VerifyContext(final byte[] data, final int k, final int l, final BigInteger n, final BigInteger e) {
+    this.k = k;
+    this.l = l;
+    this.n = n;
+    this.e = e;
+    this.x = (new BigInteger(data)).mod(n);
+    this.delta = LagrangeCache.factorial(l);
+    this.ids = new int[k];
+    this.bases = new BigInteger[k];
+    this.haveSig = new boolean[l];
+  }
+
+  /**
+   * A context for another thread verifying the same message, sharing the
+   * values computed once; computes x^e' first if no subset has yet
+   */
+  VerifyContext(final VerifyContext other) {
+    this.k = other.k;
+    this.l = other.l;
+    this.n = other.n;
+    this.e = other.e;
+    this.x = other.x;
+    this.delta = other.delta;
+    this.xeprime = other.xeprime();
+    this.ids = new int[k];
+    this.bases = new BigInteger[k];
+    this.haveSig = new boolean[l];
+  }
+
+  // Methods
+  //............................................................................
+  /**
+   * Verifies the message against the first k shares of sigs
+   *
+   * @param sigs - the subset to combine
+   * @param event - if not null, receives the interpolation and exponentiation times
+   *
+   * @return true if the shares combine to a signature of the message
+   * @throws ThresholdSigException if a share is null or its id is repeated
+   */
+  boolean verify(final SigShare[] sigs, final ThreshSigEvents.VerifyAttempt event)
+      throws ThresholdSigException {
+    // Sanity Check - make sure there are at least k unique sigs out of l
+    // possible
+    Arrays.fill(haveSig, false);
+    for (int i = 0; i < k; i++) {
+      if (sigs[i] == null) {
+        throw new ThresholdSigException("Null signature");
+      }
+      if (haveSig[sigs[i].getId() - 1]) {
+        throw new ThresholdSigException("Duplicate signature: " + sigs[i].getId());
+      }
+      haveSig[sigs[i].getId() - 1] = true;
+      ids[i] = sigs[i].getId();
+    }
+
+    final long started = System.nanoTime();
+
+    for (int i = 0; i < k; i++) {
+      bases[i] = sigs[i].getSig();
+    }
+
+    final BigInteger w;
+    try {
+      w = LagrangeProduct.product(bases, LagrangeCache.lambdas(l, ids), k, n);
+    } catch (final ArithmeticException ae) {
+      return false; // a share with a negative coefficient and no inverse mod n cannot be a signature
+    }
+    final long interpolated = System.nanoTime();
+
+    final BigInteger xeprime = xeprime();
+    final BigInteger we = CostReport.modPow(w, e, n);
+    final long exponentiated = System.nanoTime();
+
+    CostReport.phase("verify-interpolation", interpolated - started);
+    CostReport.phase("verify-exponentiation", exponentiated - interpolated);
+    if (event != null) {
+      event.interpolation = interpolated - started;
+      event.exponentiation = exponentiated - interpolated;
+    }
+    return (xeprime.compareTo(we) == 0);
+  }
+
+  private synchronized BigInteger xeprime() {
+    if (xeprime == null) {
+      // eprime = delta^2*4
+      xeprime = CostReport.modPow(x, delta.multiply(delta).shiftLeft(2), n);
+    }
+    return xeprime;
+  }
+}